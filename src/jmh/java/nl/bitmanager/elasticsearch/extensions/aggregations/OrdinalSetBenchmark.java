@@ -0,0 +1,104 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the OrdinalSet operations that dominate the undup engine: filling a set in random order
+ * (sparse sets that possibly switch to dense), combining the sets of all buckets and iterating them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrdinalSetBenchmark {
+    @Param({"1000000"})
+    public int maxOrd;
+
+    @Param({"100", "10000", "100000"})
+    public int cardinality;
+
+    @Param({"16"})
+    public int buckets;
+
+    private MemoryAccounter memory;
+    private int[] ords;
+    private OrdinalSet[] sets;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        memory = new MemoryAccounter(null, "benchmark");
+        Random rnd = new Random(42);
+        ords = new int[cardinality];
+        for (int i=0; i<ords.length; i++) ords[i] = rnd.nextInt(maxOrd);
+
+        sets = new OrdinalSet[buckets];
+        for (int b=0; b<buckets; b++) {
+            sets[b] = new OrdinalSet(maxOrd, memory);
+            for (int i=0; i<cardinality/buckets; i++) sets[b].set(rnd.nextInt(maxOrd));
+            sets[b].optimize();
+        }
+    }
+
+    @Benchmark
+    public int fill() {
+        OrdinalSet set = new OrdinalSet(maxOrd, memory);
+        for (int ord: ords) set.set(ord);
+        int ret = set.cardinality();
+        set.release();
+        return ret;
+    }
+
+    @Benchmark
+    public int union() {
+        OrdinalSet combined = new OrdinalSet(maxOrd, memory);
+        for (OrdinalSet set: sets) combined.or(set);
+        int ret = combined.cardinality();
+        combined.release();
+        return ret;
+    }
+
+    @Benchmark
+    public long iterate() {
+        long ret = 0;
+        for (OrdinalSet set: sets) {
+            OrdinalSet.OrdIterator it = set.iterator();
+            for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next()) ret += ord;
+        }
+        return ret;
+    }
+}
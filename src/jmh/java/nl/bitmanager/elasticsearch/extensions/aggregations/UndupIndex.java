@@ -0,0 +1,228 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * In-memory index with a synthetic parent-child hierarchy, mimicking the layout of a join field.
+ *
+ * Type t has fanOut times as many docs as type t+1. The field join#t holds the own id of the docs of type t
+ * and the parent id of the docs of type t-1, like the _parent_join#type fields do. Docs are shuffled over the segments.
+ * Global ordinals are computed via an OrdinalMap, and the docs per type per segment are kept as bitsets,
+ * like the BitsetFilterCache would do.
+ */
+final class UndupIndex implements Closeable {
+    final int levels;
+    final int[] docsPerType;
+    private final Directory dir;
+    final DirectoryReader reader;
+    final List<LeafReaderContext> leaves;
+    private final OrdinalMap[] ordinalMaps;
+    private final FixedBitSet[][] typeDocs;
+
+    UndupIndex (int levels, int fanOut, int childDocs, int segments, long seed) throws IOException {
+        this.levels = levels;
+        docsPerType = new int[levels];
+        int n = childDocs;
+        for (int t=0; t<levels; t++) {
+            docsPerType[t] = Math.max(1, n);
+            n /= fanOut;
+        }
+
+        int total = 0;
+        for (int t=0; t<levels; t++) total += docsPerType[t];
+        int[] typeOfDoc = new int[total];
+        int[] idOfDoc = new int[total];
+        for (int t=0, k=0; t<levels; t++)
+            for (int i=0; i<docsPerType[t]; i++, k++) {
+                typeOfDoc[k] = t;
+                idOfDoc[k] = i;
+            }
+        Random rnd = new Random(seed);
+        for (int i=total-1; i>0; i--) {
+            int j = rnd.nextInt(i+1);
+            int tmp = typeOfDoc[i]; typeOfDoc[i] = typeOfDoc[j]; typeOfDoc[j] = tmp;
+            tmp = idOfDoc[i]; idOfDoc[i] = idOfDoc[j]; idOfDoc[j] = tmp;
+        }
+
+        dir = new ByteBuffersDirectory();
+        IndexWriterConfig cfg = new IndexWriterConfig();
+        cfg.setMergePolicy(NoMergePolicy.INSTANCE);
+        cfg.setRAMBufferSizeMB(256);
+        final int perSegment = Math.max(1, (total + segments - 1) / segments);
+        try (IndexWriter writer = new IndexWriter(dir, cfg)) {
+            for (int k=0; k<total; k++) {
+                int t = typeOfDoc[k];
+                Document doc = new Document();
+                doc.add(new StringField("type", "t" + t, Field.Store.NO));
+                addId(doc, t, id(t, idOfDoc[k]));
+                if (t+1 < levels) addId(doc, t+1, id(t+1, idOfDoc[k] % docsPerType[t+1]));
+                writer.addDocument(doc);
+                if ((k+1) % perSegment == 0) writer.flush();
+            }
+            writer.commit();
+        }
+        reader = DirectoryReader.open(dir);
+        leaves = reader.leaves();
+
+        ordinalMaps = new OrdinalMap[levels];
+        typeDocs = new FixedBitSet[levels][leaves.size()];
+        for (int t=0; t<levels; t++) {
+            SortedSetDocValues[] perLeaf = new SortedSetDocValues[leaves.size()];
+            for (LeafReaderContext leaf: leaves) {
+                perLeaf[leaf.ord] = segmentOrdinals(leaf, t);
+                typeDocs[t][leaf.ord] = new FixedBitSet(leaf.reader().maxDoc());
+            }
+            ordinalMaps[t] = OrdinalMap.build(null, perLeaf, PackedInts.DEFAULT);
+        }
+        for (LeafReaderContext leaf: leaves) {
+            for (int t=0; t<levels; t++) {
+                //A doc is of type t if its own id is in join#t and it has no id of type t-1
+                SortedSetDocValues own = segmentOrdinals(leaf, t);
+                SortedSetDocValues child = t == 0 ? null : segmentOrdinals(leaf, t-1);
+                for (int doc = own.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = own.nextDoc()) {
+                    if (child != null && child.advanceExact(doc)) continue;
+                    typeDocs[t][leaf.ord].set(doc);
+                }
+            }
+        }
+    }
+
+    static String field (int type) {
+        return "join#" + type;
+    }
+
+    private static String id (int type, int id) {
+        return type + "_" + id;
+    }
+
+    private static void addId (Document doc, int type, String id) {
+        doc.add(new StringField(field(type), id, Field.Store.NO));
+        doc.add(new SortedSetDocValuesField(field(type), new BytesRef(id)));
+    }
+
+    private SortedSetDocValues segmentOrdinals (LeafReaderContext leaf, int type) throws IOException {
+        return DocValues.getSortedSet(leaf.reader(), field(type));
+    }
+
+    int maxOrd (int type) {
+        return (int)ordinalMaps[type].getValueCount();
+    }
+
+    /** Returns a fresh iterator over the docs of the type in the segment */
+    DocIdSetIterator docs (int type, LeafReaderContext leaf) {
+        FixedBitSet bits = typeDocs[type][leaf.ord];
+        return new BitSetIterator(bits, bits.cardinality());
+    }
+
+    /** Returns fresh global ordinals of the join field of the type, like ValuesSource.globalOrdinalsValues() */
+    SortedSetDocValues globalOrdinals (int type, LeafReaderContext leaf) throws IOException {
+        return new GlobalOrdinals(type, leaf);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    private final class GlobalOrdinals extends SortedSetDocValues {
+        private final int type;
+        private final SortedSetDocValues values;
+        private final LongValues mapping;
+        private SortedSetDocValues[] lookups;
+
+        GlobalOrdinals (int type, LeafReaderContext leaf) throws IOException {
+            this.type = type;
+            this.values = segmentOrdinals(leaf, type);
+            this.mapping = ordinalMaps[type].getGlobalOrds(leaf.ord);
+        }
+
+        @Override
+        public long nextOrd() throws IOException {
+            long ord = values.nextOrd();
+            return ord == NO_MORE_ORDS ? ord : mapping.get(ord);
+        }
+
+        @Override
+        public BytesRef lookupOrd(long ord) throws IOException {
+            OrdinalMap map = ordinalMaps[type];
+            int segment = map.getFirstSegmentNumber(ord);
+            if (lookups == null) lookups = new SortedSetDocValues[leaves.size()];
+            if (lookups[segment] == null) lookups[segment] = segmentOrdinals(leaves.get(segment), type);
+            return lookups[segment].lookupOrd(map.getFirstSegmentOrd(ord));
+        }
+
+        @Override
+        public long getValueCount() {
+            return ordinalMaps[type].getValueCount();
+        }
+
+        @Override
+        public boolean advanceExact(int target) throws IOException {
+            return values.advanceExact(target);
+        }
+
+        @Override
+        public int docID() {
+            return values.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return values.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return values.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return values.cost();
+        }
+    }
+}
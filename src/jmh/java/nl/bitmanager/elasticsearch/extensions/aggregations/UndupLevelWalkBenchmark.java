@@ -0,0 +1,196 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the phases of the undup engine on a synthetic hierarchy (see UndupIndex):
+ * <ul>
+ * <li>collect: administrating the parent ordinals of the hits per bucket, like the leaf collectors do</li>
+ * <li>walkOrdinalMajor: the post-collection level walk via ParentOrdinalMap, visiting all parent docs</li>
+ * <li>walkCandidates: the same walk, but visiting only the candidate docs (like cache_bitsets=false)</li>
+ * <li>buildFullMap: building a complete ordinal map, like the ParentOrdinalMapCache does</li>
+ * <li>walkColdCache: the walk via complete maps, like the first aggregation after a refresh would do with the cache.
+ * Compare it with walkCandidates for buckets=1: that is why the cache is only used when the ordinal-major engine is chosen</li>
+ * </ul>
+ * The hits are the docs of the lowest type, parentLevels is the number of parent levels above them.
+ * Run with -prof gc to see the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UndupLevelWalkBenchmark {
+    @Param({"2", "10", "50"})
+    public int fanOut;
+
+    @Param({"1", "2", "3"})
+    public int parentLevels;
+
+    @Param({"1", "16", "256"})
+    public int buckets;
+
+    @Param({"1", "8", "32"})
+    public int segments;
+
+    @Param({"200000"})
+    public int childDocs;
+
+    /** Per mille of the child docs that are hits */
+    @Param({"100"})
+    public int hitsPerMille;
+
+    private UndupIndex index;
+    private MemoryAccounter memory;
+    private OrdinalSet[] collected;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        index = new UndupIndex(parentLevels + 1, fanOut, childDocs, segments, 42);
+        memory = new MemoryAccounter(null, "benchmark");
+        collected = collect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public OrdinalSet[] collect() throws IOException {
+        OrdinalSet[] ret = new OrdinalSet[buckets];
+        for (int b=0; b<buckets; b++) ret[b] = new OrdinalSet(index.maxOrd(1), memory);
+        for (LeafReaderContext leaf: index.leaves) {
+            DocIdSetIterator docs = index.docs(0, leaf);
+            DocOrdinals ords = new DocOrdinals(index.globalOrdinals(1, leaf));
+            for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                int globalDoc = leaf.docBase + doc;
+                if (Integer.remainderUnsigned(globalDoc * 0x9E3779B1, 1000) >= hitsPerMille) continue;
+                if (!ords.advanceExact(doc)) continue;
+                OrdinalSet set = ret[globalDoc % buckets];
+                for (int i=0; i<ords.count(); i++) set.set(ords.ord(i));
+            }
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public long walkOrdinalMajor() throws IOException {
+        return walk(false, false);
+    }
+
+    @Benchmark
+    public long walkCandidates() throws IOException {
+        return walk(true, false);
+    }
+
+    @Benchmark
+    public long walkColdCache() throws IOException {
+        return walk(false, true);
+    }
+
+    @Benchmark
+    public ParentOrdinalMap buildFullMap() throws IOException {
+        return ParentOrdinalMap.build(index.leaves, index.maxOrd(0), index.maxOrd(1), null, null, memory, new Source(0, null, false));
+    }
+
+    /**
+     * Walks all parent levels and returns the total number of parents of the last level.
+     * If fullMap is true, the maps are built without the wanted ordinals, like a cold ParentOrdinalMapCache does.
+     */
+    private long walk(boolean candidates, boolean fullMap) throws IOException {
+        OrdinalSet[] cur = collected;
+        for (int t=1; t<parentLevels; t++) {
+            OrdinalSet combined = new OrdinalSet(index.maxOrd(t), memory);
+            for (OrdinalSet set: cur) combined.or(set);
+            combined.optimize();
+
+            ParentOrdinalMap map;
+            if (fullMap)
+                map = ParentOrdinalMap.build(index.leaves, index.maxOrd(t), index.maxOrd(t+1), null, null, memory, new Source(t, null, false));
+            else {
+                OrdinalSaturation saturation = new OrdinalSaturation(combined, memory);
+                map = ParentOrdinalMap.build(index.leaves, index.maxOrd(t), index.maxOrd(t+1),
+                        combined, saturation, memory, new Source(t, combined, candidates));
+                saturation.release();
+            }
+
+            OrdinalSet[] next = new OrdinalSet[buckets];
+            for (int b=0; b<buckets; b++) {
+                next[b] = new OrdinalSet(index.maxOrd(t+1), memory);
+                map.translate(cur[b], next[b]);
+            }
+            cur = next;
+        }
+        long ret = 0;
+        for (OrdinalSet set: cur) ret += set.cardinality();
+        return ret;
+    }
+
+    private class Source implements ParentOrdinalMap.LeafSource {
+        private final int type;
+        private final OrdinalSet wanted;
+        private final boolean candidates;
+
+        Source (int type, OrdinalSet wanted, boolean candidates) {
+            this.type = type;
+            this.wanted = wanted;
+            this.candidates = candidates;
+        }
+
+        @Override
+        public DocIdSetIterator docs(LeafReaderContext leaf) throws IOException {
+            DocIdSetIterator docs = index.docs(type, leaf);
+            if (!candidates) return docs;
+            return CandidateDocs.intersect(leaf.reader(), UndupIndex.field(type), index.globalOrdinals(type, leaf), wanted, docs);
+        }
+
+        @Override
+        public SortedSetDocValues ordinals(LeafReaderContext leaf) throws IOException {
+            return index.globalOrdinals(type, leaf);
+        }
+
+        @Override
+        public SortedSetDocValues parentOrdinals(LeafReaderContext leaf) throws IOException {
+            return index.globalOrdinals(type+1, leaf);
+        }
+    }
+}
@@ -32,14 +32,21 @@ import java.util.function.Supplier;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
 import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
 import org.elasticsearch.index.mapper.Mapper;
@@ -51,13 +58,21 @@ import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.SearchPlugin;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import nl.bitmanager.elasticsearch.extensions.aggregations.ParentOrdinalMapCache;
 import nl.bitmanager.elasticsearch.extensions.aggregations.UndupByParentsAggregatorBuilder;
+import nl.bitmanager.elasticsearch.extensions.aggregations.UndupExecutor;
+import nl.bitmanager.elasticsearch.extensions.aggregations.UndupWarmer;
 import nl.bitmanager.elasticsearch.extensions.queries.AllowNestedQueryBuilder;
 import nl.bitmanager.elasticsearch.extensions.queries.FuzzyQueryBuilder;
 import nl.bitmanager.elasticsearch.extensions.queries.MatchDeletedQueryBuilder;
 import nl.bitmanager.elasticsearch.extensions.queries.MatchNestedQueryBuilder;
+import nl.bitmanager.elasticsearch.extensions.termlist.TermlistExecutor;
 import nl.bitmanager.elasticsearch.search.FetchDiagnostics;
 import nl.bitmanager.elasticsearch.search.SearchParms;
 import nl.bitmanager.elasticsearch.similarity.BoundedSimilarity;
@@ -124,6 +139,36 @@ public class Plugin extends org.elasticsearch.plugins.Plugin implements Analysis
             logger.info("Register bounded_similarity");
         }
         indexModule.addSimilarity("bounded_similarity", BoundedSimilarity::create);
+        indexModule.addIndexEventListener(new UndupWarmer());
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry, Environment environment,
+                                               NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
+        UndupExecutor.INSTANCE.init(threadPool, ESSettings);
+        TermlistExecutor.INSTANCE.init(threadPool, ESSettings);
+        ParentOrdinalMapCache.init(ESSettings);
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        List<Setting<?>> ret = new ArrayList<Setting<?>>(4);
+        ret.add (UndupExecutor.INSTANCE.parallelismSetting);
+        ret.add (TermlistExecutor.INSTANCE.parallelismSetting);
+        ret.add (ParentOrdinalMapCache.ENABLED_SETTING);
+        ret.add (UndupWarmer.WARM_SETTING);
+        return ret;
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        List<ExecutorBuilder<?>> ret = new ArrayList<ExecutorBuilder<?>>(2);
+        ret.add (UndupExecutor.INSTANCE.createExecutorBuilder(settings));
+        ret.add (TermlistExecutor.INSTANCE.createExecutorBuilder(settings));
+        return ret;
     }
 
     @Override
@@ -139,6 +184,7 @@ public class Plugin extends org.elasticsearch.plugins.Plugin implements Analysis
     public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
         List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> ret = Arrays.asList(
                 nl.bitmanager.elasticsearch.extensions.version.ActionDefinition.INSTANCE.handler,
+                nl.bitmanager.elasticsearch.extensions.stats.ActionDefinition.INSTANCE.handler,
                 nl.bitmanager.elasticsearch.extensions.view.ActionDefinition.INSTANCE.handler,
                 nl.bitmanager.elasticsearch.extensions.termlist.ActionDefinition.INSTANCE.handler,
                 nl.bitmanager.elasticsearch.extensions.cachedump.ActionDefinition.INSTANCE.handler);
@@ -150,9 +196,10 @@ public class Plugin extends org.elasticsearch.plugins.Plugin implements Analysis
     public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
                                              IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
                                              IndexNameExpressionResolver indexNameExpressionResolver, Supplier<DiscoveryNodes> nodesInCluster) {
-        ArrayList<RestHandler> ret = new ArrayList<RestHandler>(5);
+        ArrayList<RestHandler> ret = new ArrayList<RestHandler>(6);
         RestControllerWrapper c = new RestControllerWrapper(restController);
         ret.add (new nl.bitmanager.elasticsearch.extensions.version.VersionRestAction(c));
+        ret.add (new nl.bitmanager.elasticsearch.extensions.stats.StatsRestAction(c));
         ret.add (new nl.bitmanager.elasticsearch.extensions.help.HelpRestAction(c));
         ret.add (new nl.bitmanager.elasticsearch.extensions.view.ViewRestAction(c));
         ret.add (new nl.bitmanager.elasticsearch.extensions.termlist.TermlistRestAction(c));
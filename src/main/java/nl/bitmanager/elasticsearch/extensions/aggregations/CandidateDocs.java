@@ -0,0 +1,76 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ConjunctionDISI;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.DocIdSetBuilder;
+
+/**
+ * Restricts the parent docs of a level to the docs that have a wanted ordinal, without using cached bitsets.
+ *
+ * The wanted ordinals are translated into terms of the join id field, and the postings of these terms are
+ * intersected with the iterator over the parent docs. Later levels mostly have few wanted ordinals, so only a
+ * fraction of the parent docs is visited.
+ * If there are many wanted ordinals compared to the number of docs in the segment, walking the postings costs
+ * more than walking the parent docs. In that case the parent docs are returned unchanged.
+ */
+public class CandidateDocs {
+    /** Postings are only used if #wanted ordinals * MAX_DOCS_RATIO <= maxDoc of the segment */
+    static final int MAX_DOCS_RATIO = 16;
+
+    /**
+     * Returns an iterator over the parentDocs that have a wanted ordinal, or parentDocs itself if that is cheaper
+     * or not possible (like when the field is not indexed).
+     * Ordinals are global ordinals, translated into terms via globalOrdinals.
+     */
+    public static DocIdSetIterator intersect (LeafReader reader, String field,
+            SortedSetDocValues globalOrdinals,
+            OrdinalSet wanted,
+            DocIdSetIterator parentDocs) throws IOException {
+        if (parentDocs == null || wanted == null) return parentDocs;
+        final int card = wanted.cardinality();
+        if ((long)card * MAX_DOCS_RATIO > reader.maxDoc()) return parentDocs;
+
+        Terms terms = reader.terms(field);
+        if (terms == null) return parentDocs;
+        TermsEnum termsEnum = terms.iterator();
+        DocIdSetBuilder builder = new DocIdSetBuilder(reader.maxDoc(), terms);
+        PostingsEnum postings = null;
+        final long maxOrd = globalOrdinals.getValueCount();
+        OrdinalSet.OrdIterator it = wanted.iterator();
+        for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS && ord < maxOrd; ord = it.next()) {
+            if (!termsEnum.seekExact(globalOrdinals.lookupOrd(ord))) continue;
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            builder.add(postings);
+        }
+        DocIdSetIterator candidates = builder.build().iterator();
+        if (candidates == null) return DocIdSetIterator.empty();
+        return ConjunctionDISI.intersectIterators(Arrays.asList(candidates, parentDocs));
+    }
+}
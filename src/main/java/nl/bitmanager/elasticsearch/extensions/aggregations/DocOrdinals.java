@@ -0,0 +1,76 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Loads all (global) ordinals of a doc into a reusable buffer.
+ * Single valued fields are read via the unwrapped SortedDocValues, which avoids the nextOrd() loop.
+ * Instances are not thread safe.
+ */
+public final class DocOrdinals {
+    private final SortedSetDocValues values;
+    private final SortedDocValues singleValues;
+    private int[] ords;
+    private int count;
+
+    public DocOrdinals (SortedSetDocValues values) {
+        this.values = values;
+        this.singleValues = DocValues.unwrapSingleton(values);
+        this.ords = new int[singleValues != null ? 1 : 4];
+    }
+
+    public boolean isSingleValued() {
+        return singleValues != null;
+    }
+
+    /** Loads the ordinals of the doc. Returns false if the doc has no ordinals */
+    public boolean advanceExact (int doc) throws IOException {
+        if (singleValues != null) {
+            if (!singleValues.advanceExact(doc)) return false;
+            ords[0] = singleValues.ordValue();
+            count = 1;
+            return true;
+        }
+
+        count = 0;
+        if (!values.advanceExact(doc)) return false;
+        for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+            if (count == ords.length) ords = ArrayUtil.grow(ords, count+1);
+            ords[count++] = (int)ord;
+        }
+        return count > 0;
+    }
+
+    /** Number of ordinals of the last loaded doc */
+    public int count() {
+        return count;
+    }
+
+    public int ord (int i) {
+        return ords[i];
+    }
+}
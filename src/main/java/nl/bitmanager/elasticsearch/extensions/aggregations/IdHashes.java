@@ -0,0 +1,133 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * Helpers for sets of hashed parent ids, as used by the exact cross-shard reduce.
+ * A set is a sorted array of unique, non-negative 63-bit hashes. It is written as a delta-encoded list of vlongs,
+ * so the larger the set, the fewer bytes are needed per id.
+ *
+ * When such a set needs to be folded into a HLL sketch, toSketchHash() restores a 64-bit hash.
+ */
+public class IdHashes {
+    public static final long[] EMPTY = new long[0];
+
+    /** Returns the non-negative hash of an id */
+    public static long hash (BytesRef id, MurmurHash3.Hash128 spare) {
+        return MurmurHash3.hash128(id.bytes, id.offset, id.length, 0, spare).h1 >>> 1;
+    }
+
+    /** Converts a hash from a set into a hash that spreads over all bits, as needed by HyperLogLogPlusPlus */
+    public static long toSketchHash (long hash) {
+        return hash << 1;
+    }
+
+    /** Sorts and deduplicates the first len hashes. Returns the new length */
+    public static int sortUnique (long[] hashes, int len) {
+        Arrays.sort(hashes, 0, len);
+        int j = 0;
+        for (int i=0; i<len; i++) {
+            if (j > 0 && hashes[j-1] == hashes[i]) continue;
+            hashes[j++] = hashes[i];
+        }
+        return j;
+    }
+
+    /**
+     * Returns the union of multiple sets, or null if the union has more than maxIds hashes.
+     * The sorted sets are merged via a k-way merge, which stops as soon as maxIds is exceeded.
+     */
+    public static long[] union (List<long[]> sets, int maxIds) {
+        if (sets.size() == 0) return EMPTY;
+        if (sets.size() == 1) return sets.get(0).length > maxIds ? null : sets.get(0);
+        long total = 0;
+        PriorityQueue<SetCursor> queue = new PriorityQueue<SetCursor>(sets.size()) {
+            @Override
+            protected boolean lessThan(SetCursor a, SetCursor b) {
+                return a.current() < b.current();
+            }
+        };
+        for (long[] set: sets) {
+            if (set.length > maxIds) return null;
+            total += set.length;
+            if (set.length > 0) queue.add(new SetCursor(set));
+        }
+
+        long[] ret = new long[(int)Math.min(total, maxIds)];
+        int len = 0;
+        while (queue.size() > 0) {
+            SetCursor top = queue.top();
+            long hash = top.current();
+            if (len == 0 || ret[len-1] != hash) {
+                if (len == ret.length) return null;
+                ret[len++] = hash;
+            }
+            if (top.next()) queue.updateTop(); else queue.pop();
+        }
+        return len == ret.length ? ret : Arrays.copyOf(ret, len);
+    }
+
+    private static class SetCursor {
+        private final long[] set;
+        private int pos;
+
+        SetCursor (long[] set) {
+            this.set = set;
+        }
+
+        long current() {
+            return set[pos];
+        }
+
+        boolean next() {
+            return ++pos < set.length;
+        }
+    }
+
+    public static void writeTo (StreamOutput out, long[] hashes) throws IOException {
+        out.writeVInt(hashes.length);
+        long prev = 0;
+        for (long h: hashes) {
+            out.writeVLong(h - prev);
+            prev = h;
+        }
+    }
+
+    public static long[] readFrom (StreamInput in) throws IOException {
+        int len = in.readVInt();
+        long[] ret = new long[len];
+        long prev = 0;
+        for (int i=0; i<len; i++) {
+            prev += in.readVLong();
+            ret[i] = prev;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+
+/**
+ * Accounts heap allocations that are not done via BigArrays against a circuit breaker.
+ * Allocations should be accounted before they are done, so that the breaker can trip before the memory is claimed.
+ * All memory that is still accounted is released by release().
+ * This class is thread safe.
+ */
+public class MemoryAccounter {
+    private final CircuitBreaker breaker;
+    private final String label;
+    private final AtomicLong used;
+    private final AtomicLong peak;
+
+    public MemoryAccounter (CircuitBreaker breaker, String label) {
+        this.breaker = breaker;
+        this.label = label;
+        this.used = new AtomicLong();
+        this.peak = new AtomicLong();
+    }
+
+    /** Adds (delta > 0) or releases (delta < 0) memory. Throws a CircuitBreakingException if the breaker trips */
+    public void account (long delta) {
+        if (delta == 0) return;
+        if (delta > 0) {
+            if (breaker != null) breaker.addEstimateBytesAndMaybeBreak(delta, label);
+            long cur = used.addAndGet(delta);
+            long p;
+            while (cur > (p = peak.get()) && !peak.compareAndSet(p, cur));
+            return;
+        }
+        if (breaker != null) breaker.addWithoutBreaking(delta);
+        used.addAndGet(delta);
+    }
+
+    /** Releases all accounted memory */
+    public void release () {
+        long bytes = used.getAndSet(0);
+        if (bytes != 0 && breaker != null) breaker.addWithoutBreaking(-bytes);
+    }
+
+    public long used() {
+        return used.get();
+    }
+
+    public long peak() {
+        return peak.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[used=%d, peak=%d]", label, used(), peak());
+    }
+
+    public static long sizeOfIntArray (long len) {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 4L * len);
+    }
+
+    public static long sizeOfLongArray (long len) {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 8L * len);
+    }
+}
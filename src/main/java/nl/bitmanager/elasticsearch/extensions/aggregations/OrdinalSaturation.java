@@ -0,0 +1,86 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Tracks which of the wanted ordinals have been seen during a sweep over the docs of a level.
+ * The docs of a level are the docs of 1 parent type, and each doc has its own id. So once all wanted ordinals
+ * have been seen, their parents are known and the remaining docs and segments cannot contribute anything.
+ *
+ * Can be used by multiple threads. Memory is accounted until release() is called.
+ */
+public final class OrdinalSaturation {
+    private final AtomicLongArray seen;
+    private final int wanted;
+    private final AtomicInteger count;
+    private final MemoryAccounter memory;
+    private final long bytes;
+    private volatile boolean terminatedEarly;
+
+    public OrdinalSaturation (OrdinalSet wantedOrdinals, MemoryAccounter memory) {
+        int words = FixedBitSet.bits2words(wantedOrdinals.length());
+        this.memory = memory;
+        this.bytes = MemoryAccounter.sizeOfLongArray(words);
+        memory.account(bytes);
+        this.seen = new AtomicLongArray(words);
+        this.wanted = wantedOrdinals.cardinality();
+        this.count = new AtomicInteger();
+    }
+
+    /** Marks a wanted ordinal as seen */
+    public void see (int ord) {
+        final int word = ord >> 6;
+        if (word >= seen.length()) return;
+        final long mask = 1L << ord;
+        while (true) {
+            long old = seen.get(word);
+            if ((old & mask) != 0) return;
+            if (seen.compareAndSet(word, old, old | mask)) break;
+        }
+        count.incrementAndGet();
+    }
+
+    public boolean isSaturated() {
+        return count.get() >= wanted;
+    }
+
+    /**
+     * Should be called when there is more work to do (docs or segments).
+     * Returns true if that work can be skipped, and registers that the sweep was terminated early.
+     */
+    public boolean canStop() {
+        if (count.get() < wanted) return false;
+        terminatedEarly = true;
+        return true;
+    }
+
+    public boolean terminatedEarly() {
+        return terminatedEarly;
+    }
+
+    public void release() {
+        memory.account(-bytes);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.util.Arrays;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Set of ordinals that starts sparse (an int array) and switches to a dense FixedBitSet
+ * as soon as the dense representation is cheaper.
+ *
+ * In sparse mode, ordinals are appended unsorted. The array is sorted and deduplicated lazily (when it is full
+ * or when it is queried). Queries are only thread safe after a call to optimize().
+ *
+ * If an accounter is supplied, all growth is accounted before the memory is allocated, and release()
+ * gives the memory back.
+ */
+public final class OrdinalSet {
+    public static final int NO_MORE_ORDS = DocIdSetIterator.NO_MORE_DOCS;
+    private static final int INITIAL_CAPACITY = 8;
+    private static final long SHALLOW_SIZE = RamUsageEstimator.shallowSizeOfInstance(OrdinalSet.class);
+
+    private final MemoryAccounter accounter;
+    private int maxOrd;
+
+    //Sparse administration: [0, sortedSize) is sorted and unique
+    private int[] ords;
+    private int size;
+    private int sortedSize;
+
+    //Dense administration
+    private FixedBitSet bits;
+
+    public OrdinalSet (int maxOrd) {
+        this(maxOrd, null);
+    }
+
+    public OrdinalSet (int maxOrd, MemoryAccounter accounter) {
+        this.accounter = accounter;
+        this.maxOrd = maxOrd;
+        account (SHALLOW_SIZE + MemoryAccounter.sizeOfIntArray(INITIAL_CAPACITY));
+        this.ords = new int[INITIAL_CAPACITY];
+    }
+
+    /** Creates an empty set with the same representation, capacity and accounter as other */
+    public static OrdinalSet createLike (OrdinalSet other) {
+        OrdinalSet ret = new OrdinalSet(other.maxOrd, other.accounter);
+        if (other.bits != null) ret.toDense();
+        return ret;
+    }
+
+    /** Gives the accounted memory back. The set should not be used after this call */
+    public void release() {
+        account (-ramBytesUsed());
+        ords = null;
+        bits = null;
+    }
+
+    /** Capacity of the set in ordinals */
+    public int length() {
+        return maxOrd;
+    }
+
+    public boolean isDense() {
+        return bits != null;
+    }
+
+    public void set (int ord) {
+        if (ord >= maxOrd) {
+            maxOrd = ord + 1;
+            if (bits != null) growDense(maxOrd);
+        }
+        if (bits != null) {
+            bits.set(ord);
+            return;
+        }
+        if (size > 0 && ords[size-1] == ord) return;
+        if (size == ords.length) {
+            compact();
+            if (size >= ords.length / 2) {
+                int newCap = 2 * ords.length;
+                if (newCap > denseThreshold()) {
+                    toDense();
+                    bits.set(ord);
+                    return;
+                }
+                account (MemoryAccounter.sizeOfIntArray(newCap) - MemoryAccounter.sizeOfIntArray(ords.length));
+                ords = Arrays.copyOf(ords, newCap);
+            }
+        }
+        ords[size++] = ord;
+    }
+
+    public boolean get (int ord) {
+        if (bits != null) return ord < bits.length() && bits.get(ord);
+        compact();
+        return Arrays.binarySearch(ords, 0, size, ord) >= 0;
+    }
+
+    public int cardinality() {
+        if (bits != null) return bits.cardinality();
+        compact();
+        return size;
+    }
+
+    /** Sorts and deduplicates the sparse array, so that the set can be queried by multiple threads */
+    public OrdinalSet optimize() {
+        if (bits == null) compact();
+        return this;
+    }
+
+    public void or (OrdinalSet other) {
+        if (other.bits != null) {
+            if (other.maxOrd > maxOrd) maxOrd = other.maxOrd;
+            if (bits == null) toDense();
+            growDense(other.bits.length());
+            bits.or(other.bits);
+            return;
+        }
+        other.compact();
+        for (int i=0; i<other.size; i++) set(other.ords[i]);
+    }
+
+    public OrdIterator iterator() {
+        return bits != null ? new DenseIterator(bits) : new SparseIterator(optimize());
+    }
+
+    public long ramBytesUsed() {
+        if (bits != null) return SHALLOW_SIZE + MemoryAccounter.sizeOfLongArray(bits.getBits().length);
+        return SHALLOW_SIZE + (ords == null ? 0 : MemoryAccounter.sizeOfIntArray(ords.length));
+    }
+
+    private void account (long delta) {
+        if (accounter != null) accounter.account(delta);
+    }
+
+    private int denseThreshold() {
+        return Math.max(INITIAL_CAPACITY, maxOrd / 32);
+    }
+
+    private void compact() {
+        if (sortedSize == size) return;
+        Arrays.sort(ords, 0, size);
+        int j = 0;
+        for (int i=0; i<size; i++) {
+            if (j > 0 && ords[j-1] == ords[i]) continue;
+            ords[j++] = ords[i];
+        }
+        sortedSize = size = j;
+    }
+
+    private void toDense() {
+        int numBits = maxOrd == 0 ? 64 : maxOrd;
+        account (MemoryAccounter.sizeOfLongArray(FixedBitSet.bits2words(numBits)));
+        FixedBitSet tmp = new FixedBitSet(numBits);
+        for (int i=0; i<size; i++) tmp.set(ords[i]);
+        bits = tmp;
+        account (-MemoryAccounter.sizeOfIntArray(ords.length));
+        ords = null;
+        size = sortedSize = 0;
+    }
+
+    private void growDense (int numBits) {
+        if (numBits <= bits.length()) return;
+        int newBits = Math.max(numBits, bits.length() + (bits.length() >> 3));
+        long oldWords = bits.getBits().length;
+        account (MemoryAccounter.sizeOfLongArray(FixedBitSet.bits2words(newBits)) - MemoryAccounter.sizeOfLongArray(oldWords));
+        FixedBitSet tmp = new FixedBitSet(newBits);
+        tmp.or(bits);
+        bits = tmp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, max=%d, card=%d, bytes=%d]", getClass().getSimpleName(), bits==null ? "sparse" : "dense", maxOrd, cardinality(), ramBytesUsed());
+    }
+
+    /**
+     * Iterates the ordinals in ascending order
+     */
+    public static abstract class OrdIterator {
+        /** Returns the next ordinal or NO_MORE_ORDS */
+        public abstract int next();
+    }
+
+    private static class DenseIterator extends OrdIterator {
+        private final FixedBitSet bits;
+        private final int N;
+        private int cur;
+        DenseIterator (FixedBitSet bits) {
+            this.bits = bits;
+            this.N = bits.length();
+            this.cur = -1;
+        }
+        @Override
+        public int next() {
+            if (cur == NO_MORE_ORDS || cur+1 >= N) return cur = NO_MORE_ORDS;
+            return cur = bits.nextSetBit(cur+1);
+        }
+    }
+
+    private static class SparseIterator extends OrdIterator {
+        private final int[] ords;
+        private final int size;
+        private int cur;
+        SparseIterator (OrdinalSet set) {
+            this.ords = set.ords;
+            this.size = set.size;
+            this.cur = -1;
+        }
+        @Override
+        public int next() {
+            return ++cur < size ? ords[cur] : NO_MORE_ORDS;
+        }
+    }
+}
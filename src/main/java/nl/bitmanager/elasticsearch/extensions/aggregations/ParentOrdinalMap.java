@@ -0,0 +1,183 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Maps the global ordinals of one level onto the global ordinals of the next (parent) level.
+ * The map is filled by sweeping once over the docs of a level, after which the bitset of a bucket can be
+ * translated by only visiting its set bits. (Ordinal-major undupping)
+ *
+ * The first parent of an ordinal is stored packed (as parent+1, 0 means: no parent).
+ * Additional parents for the same ordinal are rare and are kept in a hashmap.
+ */
+public class ParentOrdinalMap {
+    private final PackedInts.Mutable firstParent;
+    private final HashMap<Integer, int[]> extraParents;
+    private final int maxOrd;
+    private int mappedOrdinals;
+
+    public ParentOrdinalMap (int maxOrd, int maxParentOrd) {
+        this.maxOrd = maxOrd;
+        this.firstParent = PackedInts.getMutable(maxOrd, PackedInts.unsignedBitsRequired(maxParentOrd+1), PackedInts.COMPACT);
+        this.extraParents = new HashMap<Integer, int[]>();
+    }
+
+    /** Estimates the memory needed for the map (without extra parents), so that it can be accounted before allocation */
+    public static long estimateBytes (int maxOrd, int maxParentOrd) {
+        return PackedInts.Format.PACKED.byteCount(PackedInts.VERSION_CURRENT, maxOrd, PackedInts.unsignedBitsRequired(maxParentOrd+1)) + 64;
+    }
+
+    public int maxOrd() {
+        return maxOrd;
+    }
+
+    /** Number of ordinals that have at least 1 parent */
+    public int mappedOrdinals() {
+        return mappedOrdinals;
+    }
+
+    public void add (int ord, int parentOrd) {
+        int existing = (int)firstParent.get(ord) - 1;
+        if (existing < 0) {
+            firstParent.set(ord, parentOrd+1);
+            mappedOrdinals++;
+            return;
+        }
+        if (existing == parentOrd) return;
+
+        int[] extra = extraParents.get(ord);
+        if (extra == null) {
+            extraParents.put(ord, new int[] {parentOrd});
+            return;
+        }
+        for (int p: extra) if (p==parentOrd) return;
+        extra = Arrays.copyOf(extra, extra.length+1);
+        extra[extra.length-1] = parentOrd;
+        extraParents.put(ord, extra);
+    }
+
+    /**
+     * Supplies the per-segment docs and ordinals that are needed to build a map.
+     */
+    public interface LeafSource {
+        /** Returns the docs of the child level in this segment, or null if there are none */
+        DocIdSetIterator docs (LeafReaderContext leaf) throws IOException;
+        SortedSetDocValues ordinals (LeafReaderContext leaf) throws IOException;
+        SortedSetDocValues parentOrdinals (LeafReaderContext leaf) throws IOException;
+    }
+
+    /**
+     * Builds a map by sweeping over all leaves.
+     * If wantedOrdinals is null, all ordinals are mapped.
+     * The memory of the map is accounted against memory before it is allocated.
+     */
+    public static ParentOrdinalMap build (List<LeafReaderContext> leaves, int maxOrd, int maxParentOrd,
+            OrdinalSet wantedOrdinals, OrdinalSaturation saturation, MemoryAccounter memory, LeafSource source) throws IOException {
+        long mapBytes = estimateBytes(maxOrd, maxParentOrd);
+        memory.account(mapBytes);
+        ParentOrdinalMap map = new ParentOrdinalMap(maxOrd, maxParentOrd);
+
+        for (LeafReaderContext leaf : leaves) {
+            if (saturation != null && saturation.canStop()) break;
+            DocIdSetIterator iter = source.docs(leaf);
+            if (iter == null) continue;
+            map.addSegment(iter, leaf.reader().getLiveDocs(), wantedOrdinals, saturation, source.ordinals(leaf), source.parentOrdinals(leaf));
+        }
+        //Account the parents that were stored in the overflow map
+        if (map.ramBytesUsed() > mapBytes)
+            memory.account(map.ramBytesUsed() - mapBytes);
+        return map;
+    }
+
+    /**
+     * Sweeps over the docs from iter and administrates the relation between the ordinals of the doc and the parent ordinals.
+     * Only ordinals that are set in wantedOrdinals are administrated. If wantedOrdinals is null, all ordinals are administrated.
+     * Both the child and the parent field may be multi-valued: every wanted child ordinal is related to every parent ordinal.
+     * If a saturation is supplied, the sweep stops as soon as all wanted ordinals have been seen.
+     */
+    public void addSegment (DocIdSetIterator iter, final Bits liveDocs,
+            final OrdinalSet wantedOrdinals,
+            final OrdinalSaturation saturation,
+            final SortedSetDocValues globalOrdinals,
+            final SortedSetDocValues globalOrdinalsParent) throws IOException {
+        final DocOrdinals ords = new DocOrdinals(globalOrdinals);
+        final DocOrdinals parentOrds = new DocOrdinals(globalOrdinalsParent);
+        while (true) {
+            int docId = iter.nextDoc();
+            if (docId == DocIdSetIterator.NO_MORE_DOCS) break;
+            if (saturation != null && saturation.canStop()) break;
+            if (liveDocs != null && liveDocs.get(docId) == false) {
+                continue;
+            }
+
+            if (!ords.advanceExact(docId)) continue;
+            boolean parentsLoaded = false;
+            for (int i=0; i<ords.count(); i++) {
+                int globalOrdinal = ords.ord(i);
+                if (wantedOrdinals != null && !wantedOrdinals.get(globalOrdinal)) continue;
+
+                if (!parentsLoaded) {
+                    if (!parentOrds.advanceExact(docId)) break;
+                    parentsLoaded = true;
+                }
+                for (int j=0; j<parentOrds.count(); j++)
+                    add (globalOrdinal, parentOrds.ord(j));
+                if (saturation != null) saturation.see(globalOrdinal);
+            }
+        }
+    }
+
+    /**
+     * Translates all ordinals in src into their parent ordinals and sets them in dst.
+     */
+    public void translate (OrdinalSet src, OrdinalSet dst) {
+        final boolean hasExtra = extraParents.size() > 0;
+        OrdinalSet.OrdIterator it = src.iterator();
+        for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next()) {
+            if (ord >= maxOrd) break;
+            int parent = (int)firstParent.get(ord) - 1;
+            if (parent < 0) continue;
+            dst.set(parent);
+            if (!hasExtra) continue;
+            int[] extra = extraParents.get(ord);
+            if (extra != null) for (int p: extra) dst.set(p);
+        }
+    }
+
+    public long ramBytesUsed() {
+        return firstParent.ramBytesUsed() + 64L * extraParents.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[maxOrd=%d, mapped=%d, extra=%d, bytes=%d]", getClass().getSimpleName(), maxOrd, mappedOrdinals, extraParents.size(), ramBytesUsed());
+    }
+}
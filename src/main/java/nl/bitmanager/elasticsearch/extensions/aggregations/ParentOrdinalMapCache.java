@@ -0,0 +1,186 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Node wide cache of complete (unfiltered) ParentOrdinalMaps.
+ * A map is kept per top-level reader (so per shard and per reader generation) and per child/parent field.
+ * Maps are built lazily by the first aggregation that needs them and are dropped when the reader is closed,
+ * which happens after a refresh made the reader obsolete.
+ *
+ * The memory of the maps is charged to the fielddata breaker, since, like global ordinals, it lives as long as the reader.
+ * The cache is enabled via the node setting bitmanager.undup.cache_ordinal_maps.
+ */
+public class ParentOrdinalMapCache {
+    public static final Setting<Boolean> ENABLED_SETTING = Setting.boolSetting("bitmanager.undup.cache_ordinal_maps", true, Property.NodeScope);
+
+    private static volatile boolean enabled = true;
+    private static final Map<Key, Entry> cache = new ConcurrentHashMap<Key, Entry>();
+    private static final Set<IndexReader.CacheKey> listenedReaders = ConcurrentHashMap.newKeySet();
+
+    public static void init (Settings settings) {
+        enabled = ENABLED_SETTING.get(settings);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds a complete map in case it was not cached yet.
+     * The loader should account the memory of the map against the supplied accounter before allocating it.
+     */
+    public interface Loader {
+        ParentOrdinalMap load(MemoryAccounter memory) throws IOException;
+    }
+
+    /**
+     * Returns the cached map for the reader and fields. If the map is not cached, it is loaded via the loader.
+     * Concurrent requests for the same map wait for the first one to load it.
+     * Returns null if the cache is disabled or if the reader cannot be cached.
+     */
+    public static ParentOrdinalMap get (IndexReader reader, String index, int shard, String childField, String parentField,
+            CircuitBreaker breaker, Loader loader) throws IOException {
+        if (!enabled) return null;
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+        if (helper == null) return null;
+
+        final IndexReader.CacheKey readerKey = helper.getKey();
+        if (listenedReaders.add(readerKey)) {
+            helper.addClosedListener(ParentOrdinalMapCache::onClose);
+        }
+
+        Key key = new Key(readerKey, childField, parentField);
+        Entry entry = cache.computeIfAbsent(key, k -> new Entry(index, shard, childField, parentField, breaker));
+        return entry.getOrLoad(loader);
+    }
+
+    private static void onClose (IndexReader.CacheKey readerKey) {
+        listenedReaders.remove(readerKey);
+        Iterator<Map.Entry<Key, Entry>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> kvp = it.next();
+            if (kvp.getKey().readerKey != readerKey) continue;
+            it.remove();
+            kvp.getValue().release();
+        }
+    }
+
+    /** Drops all cached maps */
+    public static void clear() {
+        Iterator<Map.Entry<Key, Entry>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next().getValue();
+            it.remove();
+            e.release();
+        }
+    }
+
+    /** Returns a snapshot of the loaded entries. Used by the cache dump */
+    public static List<Entry> getEntries() {
+        List<Entry> ret = new ArrayList<Entry>(cache.size());
+        for (Entry e: cache.values()) {
+            if (e.map != null) ret.add(e);
+        }
+        return ret;
+    }
+
+    private static class Key {
+        final IndexReader.CacheKey readerKey;
+        final String childField;
+        final String parentField;
+
+        Key (IndexReader.CacheKey readerKey, String childField, String parentField) {
+            this.readerKey = readerKey;
+            this.childField = childField;
+            this.parentField = parentField;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * readerKey.hashCode() + childField.hashCode()) + parentField.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return readerKey == other.readerKey && childField.equals(other.childField) && parentField.equals(other.parentField);
+        }
+    }
+
+    public static class Entry {
+        public final String index;
+        public final int shard;
+        public final String childField;
+        public final String parentField;
+        private final MemoryAccounter memory;
+        private volatile ParentOrdinalMap map;
+        private boolean released;
+
+        Entry (String index, int shard, String childField, String parentField, CircuitBreaker breaker) {
+            this.index = index;
+            this.shard = shard;
+            this.childField = childField;
+            this.parentField = parentField;
+            this.memory = new MemoryAccounter(breaker, "<" + UndupByParentsAggregatorBuilder.NAME + " ordinal map>[" + index + "][" + shard + "]");
+        }
+
+        synchronized ParentOrdinalMap getOrLoad (Loader loader) throws IOException {
+            if (map != null || released) return map;
+            try {
+                map = loader.load(memory);
+            } finally {
+                if (map == null) memory.release();
+            }
+            return map;
+        }
+
+        synchronized void release() {
+            released = true;
+            map = null;
+            memory.release();
+        }
+
+        public long ramBytesUsed() {
+            return memory.used();
+        }
+
+        @Override
+        public String toString() {
+            ParentOrdinalMap m = map;
+            return String.format("%s -> %s [%d]: %s", childField, parentField, shard, m);
+        }
+    }
+}
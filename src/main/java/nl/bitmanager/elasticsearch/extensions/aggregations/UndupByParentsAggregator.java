@@ -20,6 +20,8 @@
 package nl.bitmanager.elasticsearch.extensions.aggregations;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -33,25 +35,54 @@ import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.join.BitSetProducer;
 import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
 import org.elasticsearch.common.lucene.search.Queries;
 import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.common.util.LongArray;
 import org.elasticsearch.common.util.ObjectArray;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.search.aggregations.Aggregator;
 import org.elasticsearch.search.aggregations.InternalAggregation;
 import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.metrics.HyperLogLogPlusPlus;
 import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregator;
 import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
 import org.elasticsearch.search.aggregations.support.ValuesSource.Bytes.WithOrdinals;
 import org.elasticsearch.search.internal.ContextIndexSearcher;
 import org.elasticsearch.search.internal.SearchContext;
 
+import nl.bitmanager.elasticsearch.support.SegmentExecutor;
+
 public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleValue {
+    /** If #buckets x #docs exceeds this threshold, the ordinal-major engine is used in doPostCollection */
+    static final long ORDINAL_MAJOR_THRESHOLD = 1L << 26;
+
     private final int debug_lvl;
     private final boolean cache_bitsets;
     private final boolean compensateNonExisting;
+    private final int parallelism;
+    private final boolean approximate;
+    private final int precision;
+    private final boolean exactReduce;
+    private final int maxExactIds;
+
+    /** If true, the ordinal sets of the last level are kept after post-collection, so that replayParents() can be used */
+    private final boolean retainFinalSets;
+
+    /** Accounts all heap allocations that are not done via BigArrays against the request breaker */
+    private final MemoryAccounter memory;
+
+    /** Phase timings and counters. Exported in the result if the search is profiled or debug is on */
+    private final UndupProfile profile;
+    private final boolean exportProfile;
+    private long collectStart;
 
     private final WithOrdinals[] valuesSources;
     private final ParentValueSourceConfig valuesSourceConfigs[];
@@ -63,39 +94,55 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
     /** final counts that are outputted */
     private LongArray counts;
 
-    /** final counts that are only used when doing nested to unnested undup. Will be converted into counts */
-    private ObjectArray<DocCount> docCounts; // a count per bucket
+    /** final HLL sketches per bucket that are outputted in approximate mode (instead of counts) */
+    private HyperLogLogPlusPlus sketches;
+
+    /** final sets of hashed ids per bucket that are outputted in exact_reduce mode. Buckets that exceed maxExactIds fall back to sketches */
+    private ObjectArray<long[]> exactHashes;
+
+    /** counts that are only used when doing nested to unnested undup. Will become the final counts */
+    private LongArray nestedCounts; // a count per bucket
+
+    /** last main doc per bucket, stamped with the segment generation: (generation << 32) | doc */
+    private LongArray nestedLastDocs;
+
+    /** generation of the current segment. A new generation invalidates all nestedLastDocs in O(1) */
+    private long segmentGeneration;
 
 
     /** cached docvalues for the first level of to-parent undups */
     private SortedSetDocValues[]  firstLevelDocValues;
 
-    /** holds bitset per ordinal. Only used in parent updups */
-    private ObjectArray<FixedBitSet> bitsetPerBucket; // administrate all parent ords per bucket
+    /** holds an ordinal set (sparse or dense) per bucket. Only used in parent updups */
+    private ObjectArray<OrdinalSet> bitsetPerBucket; // administrate all parent ords per bucket
     private int maxBucket;
 
-    private static long time_get() {
-        return System.nanoTime();
-    }
-    private static long time_dump_and_get(long t0, String what) {
-        double delta = (System.nanoTime() - t0) / 1000000.0;
-        System.out.println (String.format("ELAPSED for [%s]: %.3f ms", what, delta));
-        return System.nanoTime();
-    }
-
     protected UndupByParentsAggregator(UndupByParentsAggregatorFactory factory,
             String name,
             SearchContext context,
             Aggregator parent,
             List<PipelineAggregator> pipelineAggregators,
             Map<String, Object> metaData,
-            WithOrdinals[] valuesSources) throws IOException {
+            WithOrdinals[] valuesSources,
+            boolean retainFinalSets) throws IOException {
         super(name, context, parent, pipelineAggregators, metaData);
+        this.retainFinalSets = retainFinalSets;
         this.valuesSources = valuesSources;
         this.valuesSourceConfigs = factory.valuesSourceConfigs;
         this.cache_bitsets = factory.cache_bitsets;
         this.compensateNonExisting = factory.compensateNonExisting;
+        this.parallelism = factory.parallelism;
+        this.approximate = factory.approximate;
+        this.precision = factory.precision;
+        this.exactReduce = factory.exactReduce;
+        this.maxExactIds = factory.maxExactIds;
+        CircuitBreakerService breakerService = context.bigArrays().breakerService();
+        this.memory = new MemoryAccounter(breakerService == null ? null : breakerService.getBreaker(CircuitBreaker.REQUEST),
+                                          "<" + UndupByParentsAggregatorBuilder.NAME + ">[" + name + "]");
         this.debug_lvl = factory.debug_lvl;
+        this.profile = new UndupProfile();
+        this.exportProfile = debug_lvl > 0 || context.getProfilers() != null;
+        this.collectStart = System.nanoTime();
 
         //Early out for NO-OP aggregations
         if (valuesSources==null) {
@@ -109,8 +156,10 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
             mainDocsFilter = Queries.newNonNestedFilter(context.mapperService().getIndexSettings().getIndexVersionCreated());
             mainDocsBitsetProducer = context.bitsetFilterCache().getBitSetProducer(mainDocsFilter);
 
-            if (valuesSources.length == 1)
-                this.docCounts = context.bigArrays().newObjectArray(64);
+            if (valuesSources.length == 1) {
+                this.nestedCounts = context.bigArrays().newLongArray(64, true);
+                this.nestedLastDocs = context.bigArrays().newLongArray(64, true);
+            }
 
         } else {
             mainDocsFilter = null;
@@ -150,6 +199,8 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
     }
 
     private long countForBucket (long bucket) {
+        if (exactHashes != null && bucket < exactHashes.size() && exactHashes.get(bucket) != null) return exactHashes.get(bucket).length;
+        if (sketches != null) return bucket >= sketches.maxBucket() ? 0 : sketches.cardinality(bucket);
         return counts==null || ((int)bucket) >= counts.size() ? 0 : counts.get(bucket);
     }
     @Override
@@ -157,9 +208,31 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         return countForBucket(owningBucketOrd);
     }
 
+    /** Returns the profile as exported in the result, or null if the search is not profiled and debug is off */
+    Map<String, Object> exportedProfile() {
+        return exportProfile ? profile.toMap(memory) : null;
+    }
+
+    /**
+     * The profile covers the whole aggregator, so it is only exported if the aggregator is top-level.
+     * Under a multi-bucket parent it cannot be attached to 1 result: the same parent bucket can have
+     * a different ordinal on every shard, so the reduced numbers would end up in unrelated buckets.
+     */
     @Override
     public InternalAggregation buildAggregation(long bucket) throws IOException {
-        return new UndupByParentsInternal(name, countForBucket(bucket), pipelineAggregators(), metaData());
+        Map<String, Object> profileMap = parent() == null ? exportedProfile() : null;
+        if (exactHashes != null) {
+            long[] hashes = bucket < exactHashes.size() ? exactHashes.get(bucket) : null;
+            if (hashes != null || sketches == null || bucket >= sketches.maxBucket() || sketches.cardinality(bucket) == 0)
+                return new UndupByParentsInternal(name, 0, null, hashes == null ? IdHashes.EMPTY : hashes, maxExactIds, precision, profileMap, pipelineAggregators(), metaData());
+        }
+        if (sketches != null) {
+            //Copy the bucket's sketch, since the aggregator and its BigArrays are released before the result is sent
+            HyperLogLogPlusPlus copy = new HyperLogLogPlusPlus(precision, BigArrays.NON_RECYCLING_INSTANCE, 1);
+            if (bucket < sketches.maxBucket()) copy.merge(0, sketches, bucket);
+            return new UndupByParentsInternal(name, 0, copy, profileMap, pipelineAggregators(), metaData());
+        }
+        return new UndupByParentsInternal(name, countForBucket(bucket), null, profileMap, pipelineAggregators(), metaData());
     }
 
     @Override
@@ -173,16 +246,23 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         if (this.valuesSources==null) return;
 
         if (debug_lvl > 0) System.out.println("POST");
-        long t0 = time_get();
+        long t0 = profile.phase("collect", collectStart);
+        try {
+            doPostCollection(t0);
+        } finally {
+            UndupStats.record(profile, memory);
+            if (debug_lvl > 0) System.out.printf("POST: memory %s, profile %s\n", memory, profile.toMap(memory));
+        }
+    }
+
+    private void doPostCollection(long t0) throws IOException {
         //Reverse nested only?
-        if (docCounts != null) {
-            if (debug_lvl > 0) System.out.printf("POST: only revrse: converting %d counts\n", docCounts.size());
-            this.counts = context.bigArrays().newLongArray(docCounts.size());
-            for (int i=0; i<docCounts.size(); i++) {
-                DocCount dc = docCounts.get(i);
-                if (dc != null) counts.set(i, dc.count);
-            }
-            docCounts.close();
+        if (nestedCounts != null) {
+            if (debug_lvl > 0) System.out.printf("POST: only reverse: %d counts\n", nestedCounts.size());
+            this.counts = nestedCounts;
+            nestedCounts = null;
+            nestedLastDocs.close();
+            nestedLastDocs = null;
             return;
         }
 
@@ -195,7 +275,9 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         //In which case we can simply return the bit counts
         if (valuesSources.length - first == 1) {
             compensateForNonExisting();
-            this.counts = convertBitsetPerBucketIntoCounts (bitsetPerBucket);
+            t0 = profile.phase("compensate", t0);
+            convertBitsetPerBucket();
+            profile.phase("count", t0);
             return;
         }
 
@@ -214,46 +296,61 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
             int maxOrd = getMaxOrd (docValuesArr);
 
             //Allocate next level of bitset per bucket
-            ObjectArray<FixedBitSet> nextBitsetPerBucket = context.bigArrays().newObjectArray(bucketNum);
-            int dim = mod64(maxOrd+1);
+            ObjectArray<OrdinalSet> nextBitsetPerBucket = context.bigArrays().newObjectArray(bucketNum);
             for (int i = 0; i<bucketNum; i++)
                 if (bitsetPerBucket.get(i) != null)
-                    nextBitsetPerBucket.set(i,  new FixedBitSet(dim));
+                    nextBitsetPerBucket.set(i,  newOrdinalSet(maxOrd));
 
 
-            FixedBitSet combinedOrdinals = getCombinedOrdinals();
+            OrdinalSet combinedOrdinals = getCombinedOrdinals();
+            OrdinalSaturation saturation = new OrdinalSaturation(combinedOrdinals, memory);
 
             Weight w = valuesSourceConfigs[lvl-1].parentFilter.createWeight(context.searcher(), ScoreMode.COMPLETE_NO_SCORES, 1.0f);
 
-            long t1 = time_get();
-            for (LeafReaderContext leaf : rootContext.leaves()) {
-                final SortedSetDocValues globalOrdinals = valuesSources[lvl-1].globalOrdinalsValues(leaf);
-                final SortedSetDocValues globalOrdinalsParent = docValuesArr [leaf.ord];
-
-                final Bits liveDocs = leaf.reader().getLiveDocs();
-                if (this.cache_bitsets) {
-                    if (debug_lvl > 0) System.out.printf("POST: undup via cache\n");
-                    BitSet bits = context.bitsetFilterCache().getBitSetProducer(valuesSourceConfigs[lvl-1].parentFilter).getBitSet(leaf);
-                    if (bits == null) continue;
-                    undupSegment(bits, liveDocs, combinedOrdinals, globalOrdinals,  globalOrdinalsParent, nextBitsetPerBucket);
-                } else {
-                    if (debug_lvl > 0) System.out.printf("POST: undup via doc iter\n");
-                    Scorer parentScorer = w.scorer(leaf);
-                    if (parentScorer == null) continue;
-                    undupSegment(parentScorer.iterator(), liveDocs, combinedOrdinals, globalOrdinals, globalOrdinalsParent, nextBitsetPerBucket);
-                }
+            if (useOrdinalMajor(bucketNum)) {
+                undupLevelOrdinalMajor(lvl, w, combinedOrdinals, saturation, docValuesArr, nextBitsetPerBucket);
+                t0 = profile.phase("level_" + lvl, t0);
+                releaseSaturation(saturation);
+                combinedOrdinals.release();
+                releaseSets(this.bitsetPerBucket);
+                this.bitsetPerBucket = nextBitsetPerBucket;
+                continue;
             }
-            t1 = time_dump_and_get (t1, "dopost undup segments");
-            this.bitsetPerBucket.close();
+            final int childLvl = lvl-1;
+            final SortedSetDocValues[] childDocValuesArr = getDocvaluesForAllSegments (valuesSources[childLvl]);
+            UndupExecutor.INSTANCE.processLeaves(rootContext.leaves(), parallelism, () -> new PartialBitsetWorker(nextBitsetPerBucket) {
+                @Override
+                public void process(LeafReaderContext leaf) throws IOException {
+                    if (saturation.canStop()) return;
+                    final SortedSetDocValues globalOrdinals = childDocValuesArr [leaf.ord];
+                    final SortedSetDocValues globalOrdinalsParent = docValuesArr [leaf.ord];
+
+                    final Bits liveDocs = leaf.reader().getLiveDocs();
+                    if (cache_bitsets) {
+                        if (debug_lvl > 0) System.out.printf("POST: undup via cache\n");
+                        BitSet bits = context.bitsetFilterCache().getBitSetProducer(valuesSourceConfigs[childLvl].parentFilter).getBitSet(leaf);
+                        if (bits == null) return;
+                        undupSegment(bits, liveDocs, combinedOrdinals, saturation, globalOrdinals,  globalOrdinalsParent, partial);
+                    } else {
+                        if (debug_lvl > 0) System.out.printf("POST: undup via doc iter\n");
+                        DocIdSetIterator iter = getParentDocs(childLvl, w, leaf, combinedOrdinals);
+                        if (iter == null) return;
+                        undupSegment(iter, liveDocs, combinedOrdinals, saturation, globalOrdinals, globalOrdinalsParent, partial);
+                    }
+                }
+            });
+            t0 = profile.phase("level_" + lvl, t0);
+            releaseSaturation(saturation);
+            combinedOrdinals.release();
+            releaseSets(this.bitsetPerBucket);
             this.bitsetPerBucket = nextBitsetPerBucket;
         }
-        t0 = time_dump_and_get (t0, "dopost parent-child");
 
         compensateForNonExisting();
-        t0 = time_dump_and_get (t0, "dopost compensateForNonExisting");
-        this.counts = convertBitsetPerBucketIntoCounts (bitsetPerBucket);
-        t0 = time_dump_and_get (t0, "convertBitsetPerBucketIntoCounts");
-   }
+        t0 = profile.phase("compensate", t0);
+        convertBitsetPerBucket();
+        profile.phase("count", t0);
+    }
 
     /**
      * Compensating for non existing records is similar to what we do in parent undupping in doPostCollection.
@@ -272,37 +369,287 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         final int last = valuesSources.length-1;
 
         //Allocate next level of bitset per bucket
-        ObjectArray<FixedBitSet> nextBitsetPerBucket = context.bigArrays().newObjectArray(bucketNum);
+        ObjectArray<OrdinalSet> nextBitsetPerBucket = context.bigArrays().newObjectArray(bucketNum);
         for (int i = 0; i<bucketNum; i++) {
-            FixedBitSet bs = bitsetPerBucket.get(i);
+            OrdinalSet bs = bitsetPerBucket.get(i);
             if (bs != null)
-                nextBitsetPerBucket.set(i,  new FixedBitSet(bs.length()));
+                nextBitsetPerBucket.set(i,  newOrdinalSet(bs.length()));
         }
 
-        FixedBitSet combinedOrdinals = getCombinedOrdinals();
+        OrdinalSet combinedOrdinals = getCombinedOrdinals();
+        OrdinalSaturation saturation = new OrdinalSaturation(combinedOrdinals, memory);
 
         Weight w = valuesSourceConfigs[last].parentFilter.createWeight(context.searcher(), ScoreMode.COMPLETE_NO_SCORES, 1.0f);
 
-        for (LeafReaderContext leaf : rootContext.leaves()) {
-            final SortedSetDocValues globalOrdinals = valuesSources[last].globalOrdinalsValues(leaf);
-
-            final Bits liveDocs = leaf.reader().getLiveDocs();
-            if (this.cache_bitsets) {
-                if (debug_lvl > 0) System.out.printf("POST: undup via cache\n");
-                BitSet bits = context.bitsetFilterCache().getBitSetProducer(valuesSourceConfigs[last].parentFilter).getBitSet(leaf);
-                if (bits == null) continue;
-                compensateForNonExistingInSegment(bits, liveDocs, combinedOrdinals, globalOrdinals,  nextBitsetPerBucket);
-            } else {
-                if (debug_lvl > 0) System.out.printf("POST: undup via doc iter\n");
-                Scorer parentScorer = w.scorer(leaf);
-                if (parentScorer == null) continue;
-                compensateForNonExistingInSegment(parentScorer.iterator(), liveDocs, combinedOrdinals, globalOrdinals, nextBitsetPerBucket);
-            }
+        if (useOrdinalMajor(bucketNum)) {
+            compensateOrdinalMajor(last, w, combinedOrdinals, saturation, nextBitsetPerBucket);
+            releaseSaturation(saturation);
+            combinedOrdinals.release();
+            releaseSets(this.bitsetPerBucket);
+            this.bitsetPerBucket = nextBitsetPerBucket;
+            return;
         }
-        this.bitsetPerBucket.close();
+        final SortedSetDocValues[] docValuesArr = getDocvaluesForAllSegments (valuesSources[last]);
+        UndupExecutor.INSTANCE.processLeaves(rootContext.leaves(), parallelism, () -> new PartialBitsetWorker(nextBitsetPerBucket) {
+            @Override
+            public void process(LeafReaderContext leaf) throws IOException {
+                if (saturation.canStop()) return;
+                final SortedSetDocValues globalOrdinals = docValuesArr [leaf.ord];
+
+                final Bits liveDocs = leaf.reader().getLiveDocs();
+                if (cache_bitsets) {
+                    if (debug_lvl > 0) System.out.printf("POST: undup via cache\n");
+                    BitSet bits = context.bitsetFilterCache().getBitSetProducer(valuesSourceConfigs[last].parentFilter).getBitSet(leaf);
+                    if (bits == null) return;
+                    compensateForNonExistingInSegment(bits, liveDocs, combinedOrdinals, saturation, globalOrdinals,  partial);
+                } else {
+                    if (debug_lvl > 0) System.out.printf("POST: undup via doc iter\n");
+                    DocIdSetIterator iter = getParentDocs(last, w, leaf, combinedOrdinals);
+                    if (iter == null) return;
+                    compensateForNonExistingInSegment(iter, liveDocs, combinedOrdinals, saturation, globalOrdinals, partial);
+                }
+            }
+        });
+        releaseSaturation(saturation);
+        combinedOrdinals.release();
+        releaseSets(this.bitsetPerBucket);
         this.bitsetPerBucket = nextBitsetPerBucket;
     }
 
+    /** Registers whether the sweep of a level was terminated early and gives back the memory of the saturation */
+    private void releaseSaturation (OrdinalSaturation saturation) {
+        if (saturation.terminatedEarly()) profile.addEarlyTermination();
+        saturation.release();
+    }
+
+    /**
+     * Decides whether the ordinal-major engine should be used instead of the doc-major engine.
+     * The doc-major engine checks every bucket for every parent doc, so its costs are O(docs x buckets).
+     * The ordinal-major engine sweeps the docs once and only visits the set bits of the buckets.
+     */
+    private boolean useOrdinalMajor (int bucketNum) {
+        long buckets = 0;
+        for (int i=0; i<bucketNum && i<bitsetPerBucket.size(); i++)
+            if (bitsetPerBucket.get(i) != null) buckets++;
+        int maxDoc = context.searcher().getIndexReader().maxDoc();
+        boolean ret = useOrdinalMajor(buckets, maxDoc);
+        if (debug_lvl > 0) System.out.printf("POST: buckets=%d, maxDoc=%d, ordinal-major=%s\n", buckets, maxDoc, ret);
+        return ret;
+    }
+
+    /**
+     * The cache of ordinal maps is only consulted after this decision: a cold cache builds a complete map,
+     * which visits all parent docs, so it would make the few-buckets case slower.
+     */
+    static boolean useOrdinalMajor (long buckets, long maxDoc) {
+        return buckets * maxDoc > ORDINAL_MAJOR_THRESHOLD;
+    }
+
+    /**
+     * Ordinal-major undup of 1 level: build the map from this level's ordinals to the parent ordinals in 1 sweep
+     * and translate the bitset of each bucket by iterating its set bits only.
+     * If possible, a complete map is taken from the ParentOrdinalMapCache, which makes the sweep unneeded.
+     */
+    private void undupLevelOrdinalMajor(int lvl, Weight w,
+            OrdinalSet combinedOrdinals,
+            OrdinalSaturation saturation,
+            SortedSetDocValues[] docValuesArr,
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
+        ParentOrdinalMap map = getCachedOrdinalMap(lvl, w, docValuesArr);
+        final boolean cached = map != null;
+        long mapBytes = 0;
+        if (!cached) {
+            long before = memory.used();
+            map = buildOrdinalMap(lvl, w, docValuesArr, combinedOrdinals, saturation, memory);
+            mapBytes = memory.used() - before;
+        }
+        profile.addOrdinalMap(cached);
+        if (debug_lvl > 0) System.out.printf("POST: %s, cached=%s\n", map, cached);
+
+        final ParentOrdinalMap finalMap = map;
+        UndupExecutor.INSTANCE.process(getUsedBuckets(nextBitsetPerBucket), parallelism, () -> new SegmentExecutor.Worker<Integer>() {
+            @Override
+            public void process(Integer bucket) {
+                finalMap.translate(bitsetPerBucket.get(bucket), nextBitsetPerBucket.get(bucket));
+            }
+        });
+        memory.account(-mapBytes);
+    }
+
+    /**
+     * Builds the map from the ordinals of level lvl-1 to the ordinals of level lvl.
+     * If wantedOrdinals is null, all ordinals are mapped.
+     * The memory of the map is accounted against mapMemory before it is allocated.
+     */
+    private ParentOrdinalMap buildOrdinalMap(int lvl, Weight w,
+            SortedSetDocValues[] docValuesArr,
+            OrdinalSet wantedOrdinals,
+            OrdinalSaturation saturation,
+            MemoryAccounter mapMemory) throws IOException {
+        final SortedSetDocValues[] childDocValuesArr = getDocvaluesForAllSegments (valuesSources[lvl-1]);
+        return ParentOrdinalMap.build(context.searcher().getTopReaderContext().leaves(),
+                getMaxOrd (childDocValuesArr),
+                getMaxOrd (docValuesArr),
+                wantedOrdinals,
+                saturation,
+                mapMemory,
+                new ParentOrdinalMap.LeafSource() {
+                    @Override
+                    public DocIdSetIterator docs(LeafReaderContext leaf) throws IOException {
+                        return getParentDocs(lvl-1, w, leaf, wantedOrdinals);
+                    }
+                    @Override
+                    public SortedSetDocValues ordinals(LeafReaderContext leaf) {
+                        return childDocValuesArr[leaf.ord];
+                    }
+                    @Override
+                    public SortedSetDocValues parentOrdinals(LeafReaderContext leaf) {
+                        return docValuesArr[leaf.ord];
+                    }
+                });
+    }
+
+    /**
+     * Returns the complete map for level lvl-1 to lvl from the ParentOrdinalMapCache, loading it if needed.
+     * Returns null if the map cannot be cached.
+     */
+    private ParentOrdinalMap getCachedOrdinalMap(int lvl, Weight w, SortedSetDocValues[] docValuesArr) throws IOException {
+        if (!ParentOrdinalMapCache.isEnabled()) return null;
+        CircuitBreakerService breakerService = context.bigArrays().breakerService();
+        ShardId shardId = context.indexShard().shardId();
+        return ParentOrdinalMapCache.get(context.searcher().getIndexReader(),
+                shardId.getIndexName(),
+                shardId.id(),
+                valuesSourceConfigs[lvl-1].fieldContext().field(),
+                valuesSourceConfigs[lvl].fieldContext().field(),
+                breakerService == null ? null : breakerService.getBreaker(CircuitBreaker.FIELDDATA),
+                (mapMemory) -> buildOrdinalMap(lvl, w, docValuesArr, null, null, mapMemory));
+    }
+
+    /**
+     * Ordinal-major version of compensateForNonExisting: collect the existing ordinals in 1 sweep
+     * and intersect each bucket's bitset with them.
+     */
+    private void compensateOrdinalMajor(int last, Weight w,
+            OrdinalSet combinedOrdinals,
+            OrdinalSaturation saturation,
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
+        final int N = combinedOrdinals.length();
+        final long bitsetBytes = MemoryAccounter.sizeOfLongArray(FixedBitSet.bits2words(N));
+        memory.account(bitsetBytes);
+        final FixedBitSet existing = new FixedBitSet(N);
+        final SortedSetDocValues[] docValuesArr = getDocvaluesForAllSegments (valuesSources[last]);
+        UndupExecutor.INSTANCE.processLeaves(context.searcher().getTopReaderContext().leaves(), parallelism, () -> new SegmentExecutor.LeafWorker() {
+            private final FixedBitSet partial = parallelism > 1 ? allocatePartial() : existing;
+
+            private FixedBitSet allocatePartial() {
+                memory.account(bitsetBytes);
+                return new FixedBitSet(N);
+            }
+
+            @Override
+            public void process(LeafReaderContext leaf) throws IOException {
+                if (saturation.canStop()) return;
+                DocIdSetIterator iter = getParentDocs(last, w, leaf, combinedOrdinals);
+                if (iter == null) return;
+                final DocOrdinals ords = new DocOrdinals(docValuesArr [leaf.ord]);
+                final Bits liveDocs = leaf.reader().getLiveDocs();
+                long visited = 0;
+                for (int docId = iter.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS; docId = iter.nextDoc()) {
+                    if (saturation.canStop()) break;
+                    if (liveDocs != null && liveDocs.get(docId) == false) continue;
+                    visited++;
+                    if (!ords.advanceExact(docId)) continue;
+                    for (int i=0; i<ords.count(); i++) {
+                        int globalOrdinal = ords.ord(i);
+                        if (!combinedOrdinals.get(globalOrdinal)) continue;
+                        partial.set(globalOrdinal);
+                        saturation.see(globalOrdinal);
+                    }
+                }
+                profile.addDocsVisited(visited);
+            }
+
+            @Override
+            public void merge() {
+                if (partial == existing) return;
+                existing.or(partial);
+                memory.account(-bitsetBytes);
+            }
+        });
+
+        for (int bucket=0; bucket<nextBitsetPerBucket.size(); bucket++) {
+            OrdinalSet next = nextBitsetPerBucket.get(bucket);
+            if (next == null) continue;
+            OrdinalSet.OrdIterator it = bitsetPerBucket.get(bucket).iterator();
+            for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next())
+                if (existing.get(ord)) next.set(ord);
+        }
+    }
+
+    /**
+     * Returns an iterator over the docs of the parent type for this level, either from the bitset-cache or via a scorer.
+     * Without cached bitsets, the scorer is intersected with the docs that have a wanted ordinal (if not null),
+     * so that only candidate docs are visited (see CandidateDocs).
+     * Returns null if there are no such docs in the segment.
+     */
+    private DocIdSetIterator getParentDocs (int lvl, Weight w, LeafReaderContext leaf, OrdinalSet wanted) throws IOException {
+        if (this.cache_bitsets) {
+            BitSet bits = context.bitsetFilterCache().getBitSetProducer(valuesSourceConfigs[lvl].parentFilter).getBitSet(leaf);
+            return bits == null ? null : new BitSetIterator(bits, bits.approximateCardinality());
+        }
+        Scorer parentScorer = w.scorer(leaf);
+        if (parentScorer == null) return null;
+        DocIdSetIterator docs = parentScorer.iterator();
+        DocIdSetIterator ret = CandidateDocs.intersect(leaf.reader(),
+                valuesSourceConfigs[lvl].fieldContext().field(),
+                valuesSources[lvl].globalOrdinalsValues(leaf),
+                wanted,
+                docs);
+        if (ret != docs) profile.addCandidateSegment();
+        return ret;
+    }
+
+    private static List<Integer> getUsedBuckets (ObjectArray<OrdinalSet> bitsets) {
+        List<Integer> ret = new ArrayList<Integer>();
+        for (int i=0; i<bitsets.size(); i++)
+            if (bitsets.get(i) != null) ret.add(i);
+        return ret;
+    }
+
+    /**
+     * Worker that collects into its own partial next-level bitsets when running in parallel.
+     * The partial bitsets are OR-ed into the target when the worker is done.
+     * When running serially, the target is used directly.
+     */
+    private abstract class PartialBitsetWorker extends SegmentExecutor.LeafWorker {
+        protected final ObjectArray<OrdinalSet> target;
+        protected final ObjectArray<OrdinalSet> partial;
+
+        PartialBitsetWorker (ObjectArray<OrdinalSet> target) {
+            this.target = target;
+            if (parallelism <= 1) {
+                partial = target;
+                return;
+            }
+            partial = context.bigArrays().newObjectArray(target.size());
+            for (int i=0; i<target.size(); i++) {
+                OrdinalSet bs = target.get(i);
+                if (bs != null) partial.set(i, newOrdinalSet(bs.length()));
+            }
+        }
+
+        @Override
+        public void merge() {
+            if (partial == target) return;
+            for (int i=0; i<target.size(); i++) {
+                OrdinalSet bs = partial.get(i);
+                if (bs != null) target.get(i).or(bs);
+            }
+            releaseSets(partial);
+        }
+    }
+
     protected static int mod64 (int x) {
         return 64 * ((x + 64) / 64);
     }
@@ -316,135 +663,170 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         }
         return maxBucket;
     }
-    private FixedBitSet getCombinedOrdinals() {
+    /**
+     * Returns the union of all bucket ordinals.
+     * As a side effect all bucket sets are optimized, so they can be queried from multiple threads.
+     */
+    private OrdinalSet getCombinedOrdinals() {
         int maxLen = 0;
         for (int i=0; i<bitsetPerBucket.size(); i++) {
-            FixedBitSet b = bitsetPerBucket.get(i);
+            OrdinalSet b = bitsetPerBucket.get(i);
             if (b != null && b.length() > maxLen) maxLen = b.length();
         }
 
-        FixedBitSet ret = new FixedBitSet(maxLen);
+        OrdinalSet ret = newOrdinalSet(maxLen);
         for (int i=0; i<bitsetPerBucket.size(); i++) {
-            FixedBitSet b = bitsetPerBucket.get(i);
-            if (b != null) ret.or(b);;
+            OrdinalSet b = bitsetPerBucket.get(i);
+            if (b != null) ret.or(b.optimize());
         }
-        return ret;
+        return ret.optimize();
     }
 
     private void undupSegment(DocIdSetIterator iter, final Bits liveDocs,
-            FixedBitSet combinedOrdinals,
+            OrdinalSet combinedOrdinals,
+            final OrdinalSaturation saturation,
             final SortedSetDocValues globalOrdinals,
             final SortedSetDocValues globalOrdinalsParent,
-            ObjectArray<FixedBitSet> nextBitsetPerBucket) throws IOException {
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
 
         final boolean debug = this.debug_lvl > 1;
+        final DocOrdinals ords = new DocOrdinals(globalOrdinals);
+        final DocOrdinals parentOrds = new DocOrdinals(globalOrdinalsParent);
+        long visited = 0;
         while (true) {
             int docId = iter.nextDoc();
             if (debug) System.out.printf ("doc=%d\n", docId);
 
             if (docId == DocIdSetIterator.NO_MORE_DOCS) break;
+            if (saturation.canStop()) break;
             if (liveDocs != null && liveDocs.get(docId) == false) {
                 continue;
             }
-
-
-            if (!globalOrdinals.advanceExact(docId)) continue;
-            int globalOrdinal = (int)globalOrdinals.nextOrd();
-            if (globalOrdinal >= combinedOrdinals.length() || !combinedOrdinals.get(globalOrdinal)) continue;
-
-            if (!globalOrdinalsParent.advanceExact(docId)) continue;
-            int globalOrdinalParent = (int)globalOrdinalsParent.nextOrd();
-
-            for (int bucket=0; bucket<this.bitsetPerBucket.size(); bucket++) {
-                FixedBitSet bitset = bitsetPerBucket.get(bucket);
-                if (bitset==null) continue;
-
-                if (!bitset.get(globalOrdinal)) continue;
-                nextBitsetPerBucket.get(bucket).set(globalOrdinalParent);
-            }
+            visited++;
+            undupDoc (docId, combinedOrdinals, saturation, ords, parentOrds, nextBitsetPerBucket);
         }
+        profile.addDocsVisited(visited);
     }
 
     private void compensateForNonExistingInSegment(DocIdSetIterator iter, final Bits liveDocs,
-            FixedBitSet combinedOrdinals,
+            OrdinalSet combinedOrdinals,
+            final OrdinalSaturation saturation,
             final SortedSetDocValues globalOrdinals,
-            ObjectArray<FixedBitSet> nextBitsetPerBucket) throws IOException {
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
 
         final boolean debug = this.debug_lvl > 1;
+        final DocOrdinals ords = new DocOrdinals(globalOrdinals);
+        long visited = 0;
         while (true) {
             int docId = iter.nextDoc();
             if (debug) System.out.printf ("doc=%d\n", docId);
 
             if (docId == DocIdSetIterator.NO_MORE_DOCS) break;
+            if (saturation.canStop()) break;
             if (liveDocs != null && liveDocs.get(docId) == false) {
                 continue;
             }
-
-            if (!globalOrdinals.advanceExact(docId)) continue;
-            int globalOrdinal = (int)globalOrdinals.nextOrd();
-            if (globalOrdinal >= combinedOrdinals.length() || !combinedOrdinals.get(globalOrdinal)) continue;
-
-            for (int bucket=0; bucket<this.bitsetPerBucket.size(); bucket++) {
-                FixedBitSet bitset = bitsetPerBucket.get(bucket);
-                if (bitset==null) continue;
-
-                if (!bitset.get(globalOrdinal)) continue;
-                nextBitsetPerBucket.get(bucket).set(globalOrdinal);
-            }
+            visited++;
+            compensateDoc (docId, combinedOrdinals, saturation, ords, nextBitsetPerBucket);
         }
+        profile.addDocsVisited(visited);
     }
 
     private void undupSegment(BitSet iter, final Bits liveDocs,
-            final FixedBitSet combinedOrdinals,
+            final OrdinalSet combinedOrdinals,
+            final OrdinalSaturation saturation,
             final SortedSetDocValues globalOrdinals,
             final SortedSetDocValues globalOrdinalsParent,
-            ObjectArray<FixedBitSet> nextBitsetPerBucket) throws IOException {
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
+        final DocOrdinals ords = new DocOrdinals(globalOrdinals);
+        final DocOrdinals parentOrds = new DocOrdinals(globalOrdinalsParent);
+        long visited = 0;
         int docId = -1;
         final int N = iter.length() -1;
         while (docId < N) {
             docId = iter.nextSetBit(docId+1);
 
             if (docId == DocIdSetIterator.NO_MORE_DOCS) break;
+            if (saturation.canStop()) break;
             if (liveDocs != null && liveDocs.get(docId) == false) {
                 continue;
             }
-
-            if (!globalOrdinals.advanceExact(docId)) continue;
-            int globalOrdinal = (int)globalOrdinals.nextOrd();
-            if (globalOrdinal >= combinedOrdinals.length() || !combinedOrdinals.get(globalOrdinal)) continue;
-
-            if (!globalOrdinalsParent.advanceExact(docId)) continue;
-            int globalOrdinalParent = (int)globalOrdinalsParent.nextOrd();
-
-            for (int bucket=0; bucket<this.bitsetPerBucket.size(); bucket++) {
-                FixedBitSet bitset = bitsetPerBucket.get(bucket);
-                if (bitset==null) continue;
-
-                if (!bitset.get(globalOrdinal)) continue;
-                nextBitsetPerBucket.get(bucket).set(globalOrdinalParent);
-            }
+            visited++;
+            undupDoc (docId, combinedOrdinals, saturation, ords, parentOrds, nextBitsetPerBucket);
         }
+        profile.addDocsVisited(visited);
     }
     private void compensateForNonExistingInSegment(BitSet iter, final Bits liveDocs,
-            final FixedBitSet combinedOrdinals,
+            final OrdinalSet combinedOrdinals,
+            final OrdinalSaturation saturation,
             final SortedSetDocValues globalOrdinals,
-            ObjectArray<FixedBitSet> nextBitsetPerBucket) throws IOException {
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
+        final DocOrdinals ords = new DocOrdinals(globalOrdinals);
+        long visited = 0;
         int docId = -1;
         final int N = iter.length() -1;
         while (docId < N) {
             docId = iter.nextSetBit(docId+1);
 
             if (docId == DocIdSetIterator.NO_MORE_DOCS) break;
+            if (saturation.canStop()) break;
             if (liveDocs != null && liveDocs.get(docId) == false) {
                 continue;
             }
+            visited++;
+            compensateDoc (docId, combinedOrdinals, saturation, ords, nextBitsetPerBucket);
+        }
+        profile.addDocsVisited(visited);
+    }
 
-            if (!globalOrdinals.advanceExact(docId)) continue;
-            int globalOrdinal = (int)globalOrdinals.nextOrd();
+    /**
+     * Propagates the ordinals of 1 doc to the parent ordinals of that doc, for all buckets that contain the ordinals.
+     * The parent ordinals are only loaded if at least 1 of the doc's ordinals was collected.
+     */
+    private void undupDoc (int docId,
+            final OrdinalSet combinedOrdinals,
+            final OrdinalSaturation saturation,
+            final DocOrdinals ords,
+            final DocOrdinals parentOrds,
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
+        if (!ords.advanceExact(docId)) return;
+        boolean parentsLoaded = false;
+        for (int i=0; i<ords.count(); i++) {
+            int globalOrdinal = ords.ord(i);
             if (globalOrdinal >= combinedOrdinals.length() || !combinedOrdinals.get(globalOrdinal)) continue;
+            saturation.see(globalOrdinal);
 
+            if (!parentsLoaded) {
+                if (!parentOrds.advanceExact(docId)) return;
+                parentsLoaded = true;
+            }
             for (int bucket=0; bucket<this.bitsetPerBucket.size(); bucket++) {
-                FixedBitSet bitset = bitsetPerBucket.get(bucket);
+                OrdinalSet bitset = bitsetPerBucket.get(bucket);
+                if (bitset==null) continue;
+
+                if (!bitset.get(globalOrdinal)) continue;
+                OrdinalSet next = nextBitsetPerBucket.get(bucket);
+                for (int j=0; j<parentOrds.count(); j++) next.set(parentOrds.ord(j));
+            }
+        }
+    }
+
+    /**
+     * Copies the ordinals of 1 doc into the next bitset of all buckets that contain them.
+     */
+    private void compensateDoc (int docId,
+            final OrdinalSet combinedOrdinals,
+            final OrdinalSaturation saturation,
+            final DocOrdinals ords,
+            ObjectArray<OrdinalSet> nextBitsetPerBucket) throws IOException {
+        if (!ords.advanceExact(docId)) return;
+        for (int i=0; i<ords.count(); i++) {
+            int globalOrdinal = ords.ord(i);
+            if (globalOrdinal >= combinedOrdinals.length() || !combinedOrdinals.get(globalOrdinal)) continue;
+            saturation.see(globalOrdinal);
+
+            for (int bucket=0; bucket<this.bitsetPerBucket.size(); bucket++) {
+                OrdinalSet bitset = bitsetPerBucket.get(bucket);
                 if (bitset==null) continue;
 
                 if (!bitset.get(globalOrdinal)) continue;
@@ -453,17 +835,228 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         }
     }
 
-    private LongArray convertBitsetPerBucketIntoCounts(final ObjectArray<FixedBitSet> bitsetPerBucket) {
+    /** Converts the ordinal sets of the last level into the output: exact counts, HLL sketches or sets of hashed ids */
+    private void convertBitsetPerBucket() throws IOException {
+        if (approximate)
+            this.sketches = convertBitsetPerBucketIntoSketches (bitsetPerBucket);
+        else if (exactReduce)
+            convertBitsetPerBucketIntoHashes (bitsetPerBucket);
+        else
+            this.counts = convertBitsetPerBucketIntoCounts (bitsetPerBucket);
+    }
+
+    /**
+     * Folds the ordinals of each bucket into a HLL sketch.
+     * The ordinals are only valid within this shard, so the terms (the parent ids) are hashed instead.
+     * This makes it possible to undup parents over shards while reducing.
+     * Bucket sets are released as soon as they are folded.
+     */
+    private HyperLogLogPlusPlus convertBitsetPerBucketIntoSketches(final ObjectArray<OrdinalSet> bitsetPerBucket) throws IOException {
+        HyperLogLogPlusPlus ret = new HyperLogLogPlusPlus(precision, context.bigArrays(), bitsetPerBucket.size());
+        try (IdHasher hasher = new IdHasher()) {
+            for (int bucket=0; bucket<bitsetPerBucket.size(); bucket++) {
+                OrdinalSet bitset = bitsetPerBucket.get(bucket);
+                if (bitset==null) continue;
+                OrdinalSet.OrdIterator it = bitset.iterator();
+                for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next()) {
+                    long hash = hasher.hash(ord);
+                    if (hash >= 0) ret.collect(bucket, IdHashes.toSketchHash(hash));
+                }
+                bitset.release();
+                bitsetPerBucket.set(bucket, null);
+            }
+        }
+        releaseSets(bitsetPerBucket);
+        this.bitsetPerBucket = null;
+        return ret;
+    }
+
+    /**
+     * Converts the ordinals of each bucket into a sorted set of hashed parent ids, that can be united over shards while reducing.
+     * Buckets with more than maxExactIds ids fall back to a HLL sketch.
+     * The memory of the sets is accounted until the aggregator is closed.
+     */
+    private void convertBitsetPerBucketIntoHashes(final ObjectArray<OrdinalSet> bitsetPerBucket) throws IOException {
+        exactHashes = context.bigArrays().newObjectArray(bitsetPerBucket.size());
+        try (IdHasher hasher = new IdHasher()) {
+            for (int bucket=0; bucket<bitsetPerBucket.size(); bucket++) {
+                OrdinalSet bitset = bitsetPerBucket.get(bucket);
+                if (bitset==null) continue;
+                OrdinalSet.OrdIterator it = bitset.iterator();
+                final int card = bitset.cardinality();
+                if (card > maxExactIds) {
+                    if (sketches == null) sketches = new HyperLogLogPlusPlus(precision, context.bigArrays(), 1);
+                    for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next()) {
+                        long hash = hasher.hash(ord);
+                        if (hash >= 0) sketches.collect(bucket, IdHashes.toSketchHash(hash));
+                    }
+                } else {
+                    memory.account(MemoryAccounter.sizeOfLongArray(card));
+                    long[] hashes = new long[card];
+                    int len = 0;
+                    for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next()) {
+                        long hash = hasher.hash(ord);
+                        if (hash >= 0) hashes[len++] = hash;
+                    }
+                    len = IdHashes.sortUnique(hashes, len);
+                    exactHashes.set(bucket, len == hashes.length ? hashes : Arrays.copyOf(hashes, len));
+                }
+                bitset.release();
+                bitsetPerBucket.set(bucket, null);
+            }
+        }
+        releaseSets(bitsetPerBucket);
+        this.bitsetPerBucket = null;
+    }
+
+    /**
+     * Hashes the ids of the last level via their global ordinals. Each ordinal is hashed only once.
+     */
+    private class IdHasher implements Releasable {
+        private final SortedSetDocValues lookup;
+        private final long maxOrd;
+        private final MurmurHash3.Hash128 spare;
+        private final LongArray cache; //hash+1 per ordinal, 0 means: not hashed yet
+
+        IdHasher () throws IOException {
+            List<LeafReaderContext> leaves = context.searcher().getTopReaderContext().leaves();
+            lookup = leaves.size() == 0 ? null : valuesSources[valuesSources.length-1].globalOrdinalsValues(leaves.get(0));
+            maxOrd = lookup == null ? 0 : lookup.getValueCount();
+            spare = new MurmurHash3.Hash128();
+            cache = context.bigArrays().newLongArray(maxOrd, true);
+        }
+
+        /** Returns the (non-negative) hash of the id, or -1 if the ordinal is unknown */
+        long hash (int ord) throws IOException {
+            if (ord >= maxOrd) return -1;
+            long hash = cache.get(ord) - 1;
+            if (hash < 0) {
+                hash = IdHashes.hash(lookup.lookupOrd(ord), spare);
+                cache.set(ord, hash + 1);
+            }
+            return hash;
+        }
+
+        @Override
+        public void close() {
+            cache.close();
+        }
+    }
+
+    private LongArray convertBitsetPerBucketIntoCounts(final ObjectArray<OrdinalSet> bitsetPerBucket) {
         LongArray ret = context.bigArrays().newLongArray(bitsetPerBucket.size());
         for (int i=0; i<bitsetPerBucket.size(); i++) {
-            FixedBitSet bitset = bitsetPerBucket.get(i);
+            OrdinalSet bitset = bitsetPerBucket.get(i);
             if (bitset!=null)
                 ret.set(i, bitset.cardinality());
         }
-        bitsetPerBucket.close();
+        if (retainFinalSets) return ret;
+        releaseSets(bitsetPerBucket);
+        this.bitsetPerBucket = null;
         return ret;
     }
 
+    /**
+     * Receives the parent docs from replayParents()
+     */
+    interface ParentDocCollector {
+        void setNextReader (LeafReaderContext leaf) throws IOException;
+        void collect (int doc, long bucket) throws IOException;
+    }
+
+    /**
+     * Replays the docs of the last level that were found by the level walk, once for each bucket that contains their id.
+     * Only the first doc of an id is replayed, so no parent is replayed twice for a bucket.
+     * Needs the final ordinal sets, so it can only be called after post-collection when retainFinalSets was set.
+     * The replay is done serially, since collectors are not thread safe.
+     */
+    void replayParents (ParentDocCollector collector) throws IOException {
+        if (bitsetPerBucket == null) return;
+        final int last = valuesSources.length-1;
+        final OrdinalSet combinedOrdinals = getCombinedOrdinals();
+        final long emittedBytes = MemoryAccounter.sizeOfLongArray(FixedBitSet.bits2words(combinedOrdinals.length()));
+        memory.account(emittedBytes);
+        try {
+            final FixedBitSet emitted = new FixedBitSet(combinedOrdinals.length());
+            int remaining = combinedOrdinals.cardinality();
+            final Weight w = valuesSourceConfigs[last].parentFilter.createWeight(context.searcher(), ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+            final SortedSetDocValues[] docValuesArr = getDocvaluesForAllSegments (valuesSources[last]);
+            long visited = 0;
+            for (LeafReaderContext leaf: context.searcher().getTopReaderContext().leaves()) {
+                if (remaining == 0) break;
+                DocIdSetIterator iter = getParentDocs(last, w, leaf, combinedOrdinals);
+                if (iter == null) continue;
+                collector.setNextReader(leaf);
+                final DocOrdinals ords = new DocOrdinals(docValuesArr [leaf.ord]);
+                final Bits liveDocs = leaf.reader().getLiveDocs();
+                for (int docId = iter.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS && remaining > 0; docId = iter.nextDoc()) {
+                    if (liveDocs != null && liveDocs.get(docId) == false) continue;
+                    visited++;
+                    if (!ords.advanceExact(docId) || !hasUnemittedOrdinal(ords, combinedOrdinals, emitted)) continue;
+
+                    for (int bucket=0; bucket<bitsetPerBucket.size(); bucket++) {
+                        OrdinalSet bitset = bitsetPerBucket.get(bucket);
+                        if (bitset == null) continue;
+                        for (int i=0; i<ords.count(); i++) {
+                            int ord = ords.ord(i);
+                            if (ord >= emitted.length() || emitted.get(ord) || !bitset.get(ord)) continue;
+                            collector.collect(docId, bucket);
+                            break;
+                        }
+                    }
+                    for (int i=0; i<ords.count(); i++) {
+                        int ord = ords.ord(i);
+                        if (ord >= emitted.length() || emitted.get(ord)) continue;
+                        emitted.set(ord);
+                        if (combinedOrdinals.get(ord)) remaining--;
+                    }
+                }
+            }
+            profile.addDocsVisited(visited);
+        } finally {
+            combinedOrdinals.release();
+            memory.account(-emittedBytes);
+        }
+    }
+
+    private static boolean hasUnemittedOrdinal (DocOrdinals ords, OrdinalSet combinedOrdinals, FixedBitSet emitted) {
+        for (int i=0; i<ords.count(); i++) {
+            int ord = ords.ord(i);
+            if (ord < emitted.length() && !emitted.get(ord) && combinedOrdinals.get(ord)) return true;
+        }
+        return false;
+    }
+
+    /** Allocates an ordinal set that is accounted against the request breaker */
+    OrdinalSet newOrdinalSet (int len) {
+        profile.addSetsAllocated(1);
+        return new OrdinalSet(len, memory);
+    }
+
+    /** Gives back the memory of all ordinal sets and closes the array */
+    private void releaseSets (ObjectArray<OrdinalSet> sets) {
+        for (int i=0; i<sets.size(); i++) {
+            OrdinalSet set = sets.get(i);
+            if (set != null) set.release();
+        }
+        sets.close();
+    }
+
+    @Override
+    protected void doClose() {
+        if (bitsetPerBucket != null) {
+            releaseSets(bitsetPerBucket);
+            bitsetPerBucket = null;
+        }
+        Releasables.close(counts, sketches, exactHashes, nestedCounts, nestedLastDocs);
+        counts = null;
+        sketches = null;
+        exactHashes = null;
+        nestedCounts = null;
+        nestedLastDocs = null;
+        memory.release();
+    }
+
     private SortedSetDocValues[] getDocvaluesForAllSegments (WithOrdinals source) throws IOException {
         List<LeafReaderContext> leaves = context.searcher().getTopReaderContext().leaves();
         SortedSetDocValues[] ret = new SortedSetDocValues[leaves.size()];
@@ -511,15 +1104,18 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         final protected BigArrays bigArrays;
 
         /** used when undupping over a parent relation */
-        protected ObjectArray<FixedBitSet> bitsetPerBucket;
+        protected ObjectArray<OrdinalSet> bitsetPerBucket;
         final private int maxOrd;
 
         /** used when undupping over NESTED docs only */
-        protected ObjectArray<DocCount> cached_counts; // a count per bucket
+        protected LongArray cached_counts; // a count per bucket
+        protected LongArray cached_lastDocs; // a stamped last main doc per bucket
+        protected long segmentStamp;
 
         protected CollectorBase (UndupByParentsAggregator aggregator, LeafReaderContext ctx) {
             this.aggregator = aggregator;
-            this.cached_counts = aggregator.docCounts;
+            this.cached_counts = aggregator.nestedCounts;
+            this.cached_lastDocs = aggregator.nestedLastDocs;
             this.bigArrays = aggregator.context.bigArrays();
             this.bitsetPerBucket = aggregator.bitsetPerBucket;
 
@@ -528,20 +1124,18 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
 
         protected void incrementNestedCount (long bucket, int doc) {
             if (bucket >= cached_counts.size()) {
-                cached_counts = aggregator.docCounts = bigArrays.grow(cached_counts, bucket + 1);
+                cached_counts = aggregator.nestedCounts = bigArrays.grow(cached_counts, bucket + 1);
+                cached_lastDocs = aggregator.nestedLastDocs = bigArrays.grow(cached_lastDocs, bucket + 1);
             }
-            DocCount docCount = cached_counts.get(bucket);
-            if (docCount == null)
-                cached_counts.set(bucket, new DocCount(doc));
-            else
-                docCount.increment(doc);
+            final long stamp = segmentStamp | doc;
+            if (cached_lastDocs.get(bucket) == stamp) return;
+            cached_lastDocs.set(bucket, stamp);
+            cached_counts.increment(bucket, 1);
         }
 
-        protected void clearLastDocs () {
-            for (int i=0; i<cached_counts.size(); i++) {
-                DocCount docCount = cached_counts.get(i);
-                if (docCount != null) docCount.clearLastDoc();
-            }
+        /** Starts a new segment generation, which invalidates the last docs of all buckets */
+        protected void newSegmentGeneration () {
+            segmentStamp = (++aggregator.segmentGeneration) << 32;
         }
 
         protected void administrateOrdinalInBucket (int bucket, int ord) {
@@ -549,21 +1143,25 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
                 aggregator.bitsetPerBucket = bitsetPerBucket = aggregator.context.bigArrays().grow(bitsetPerBucket, bucket+1);
                 aggregator.maxBucket = (int)bitsetPerBucket.size();
             }
-            FixedBitSet bitset = bitsetPerBucket.get(bucket);
-            if (bitset == null || bitset.length() <= ord) {
+            OrdinalSet bitset = bitsetPerBucket.get(bucket);
+            if (bitset == null) {
+                //The set starts sparse and grows automatically if ord exceeds its capacity
                 int cnt = ord<maxOrd ? maxOrd : mod64(ord+1);
-                FixedBitSet tmp = new FixedBitSet (cnt);
-                if (bitset != null) tmp.or(bitset);
-                bitsetPerBucket.set(bucket, bitset = tmp);
+                bitsetPerBucket.set(bucket, bitset = aggregator.newOrdinalSet(cnt));
             }
             bitset.set(ord);
         }
 
+        /** Administrates all ordinals of the last loaded doc */
+        protected void administrateOrdinalsInBucket (int bucket, DocOrdinals ords) {
+            for (int i=0; i<ords.count(); i++)
+                administrateOrdinalInBucket(bucket, ords.ord(i));
+        }
+
         protected void dumpCounts () {
             System.out.println ("Dumping counts");
             for (int i=0; i<cached_counts.size(); i++) {
-                DocCount docCount = cached_counts.get(i);
-                System.out.printf("-- [%s]: %s\n", i, docCount==null ? -1: docCount.count);
+                System.out.printf("-- [%s]: %s\n", i, cached_counts.get(i));
             }
         }
 
@@ -593,7 +1191,7 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
 
         public FinalReverseNestedCollector (UndupByParentsAggregator aggregator, LeafReaderContext ctx) throws IOException {
             super (aggregator, ctx);
-            clearLastDocs();
+            newSegmentGeneration();
         }
 
         @Override
@@ -612,13 +1210,13 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
      * So, the collector basically undups two levels at once.
      */
     protected static class IntermediateReverseNestedParentCollector extends ReverseNestedCollector {
-        protected final SortedSetDocValues globalOrdinals;
+        protected final DocOrdinals ords;
         private int lastDoc;
-        private int lastOrd;
+        private boolean hasOrds;
 
         public IntermediateReverseNestedParentCollector (UndupByParentsAggregator aggregator, LeafReaderContext ctx) throws IOException {
             super (aggregator, ctx);
-            globalOrdinals = aggregator.firstLevelDocValues[ctx.ord]; //aggregator.valuesSources[1].globalOrdinalsValues(ctx);
+            ords = new DocOrdinals(aggregator.firstLevelDocValues[ctx.ord]); //aggregator.valuesSources[1].globalOrdinalsValues(ctx);
             lastDoc = -1;
         }
 
@@ -631,15 +1229,9 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
             if (DEBUG) System.out.printf("-- FRN COLLECT doc=%d, buck=%d, p=%d\n", docId, bucket, mainDoc);
             if (lastDoc != mainDoc) {
                 lastDoc = mainDoc;
-                if (!globalOrdinals.advanceExact(mainDoc))
-                    lastOrd = -1;
-                else {
-                    lastOrd = (int)globalOrdinals.nextOrd();
-                    administrateOrdinalInBucket((int) bucket, lastOrd);
-                }
-                return;
+                hasOrds = ords.advanceExact(mainDoc);
             }
-            if (lastOrd >= 0) administrateOrdinalInBucket((int) bucket, lastOrd);
+            if (hasOrds) administrateOrdinalsInBucket((int) bucket, ords);
             } catch (Exception e) {
                 System.out.println("bitmanager");
                 e.printStackTrace();
@@ -655,13 +1247,13 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
      * If it was not administrated before, the doc is collected into the sub-collector
      */
     protected static class IntermediateParentCollector extends CollectorBase {
-        protected final SortedSetDocValues globalOrdinals;
+        protected final DocOrdinals ords;
         private int lastDoc;
-        private int lastOrd;
+        private boolean hasOrds;
 
         protected IntermediateParentCollector (UndupByParentsAggregator aggregator, LeafReaderContext ctx) throws IOException {
             super (aggregator, ctx);
-            globalOrdinals = aggregator.firstLevelDocValues[ctx.ord]; //aggregator.valuesSources[0].globalOrdinalsValues(ctx);
+            ords = new DocOrdinals(aggregator.firstLevelDocValues[ctx.ord]); //aggregator.valuesSources[0].globalOrdinalsValues(ctx);
             lastDoc = -1;
             if (DEBUG) System.out.printf("PAR COLLECT (%s): new segment \n", getClass().getSimpleName());
         }
@@ -670,41 +1262,9 @@ public class UndupByParentsAggregator extends NumericMetricsAggregator.SingleVal
         public void collect(int docId, long bucket) throws IOException {
             if (lastDoc != docId) {
                 lastDoc = docId;
-                if (!globalOrdinals.advanceExact(docId))
-                    lastOrd = -1;
-                else {
-                    lastOrd = (int)globalOrdinals.nextOrd();
-                    administrateOrdinalInBucket((int) bucket, lastOrd);
-                }
-                return;
-            }
-            if (lastOrd >= 0) administrateOrdinalInBucket((int) bucket, lastOrd);
-        }
-    }
-
-
-    /** Helper class to hold counts and the last docid
-     *  It is used when undupping over unnested documents only
-     */
-    static class DocCount {
-        private int lastDoc;
-        public int count;
-
-        public DocCount() {
-            lastDoc = -1;
-        }
-        public DocCount(int doc) {
-            lastDoc = doc;
-            count = 1;
-        }
-        public void increment (int doc) {
-            if (doc != lastDoc) {
-                count++;
-                lastDoc = doc;
+                hasOrds = ords.advanceExact(docId);
             }
-        }
-        public void clearLastDoc() {
-            lastDoc = -1;
+            if (hasOrds) administrateOrdinalsInBucket((int) bucket, ords);
         }
     }
 }
@@ -49,6 +49,7 @@ import org.elasticsearch.search.internal.SearchContext;
 public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<UndupByParentsAggregatorBuilder> {
     public static final String NAME = "bm_undup_by_parents";
     public static final Logger logger = LogManager.getLogger(NAME);
+    public static final int DEFAULT_MAX_EXACT_IDS = 100000;
 
 
     public final String[] parentPaths;
@@ -56,9 +57,15 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
     public final boolean resilient;
     public final boolean cache_bitsets;
     public final boolean compensateNonExisting;
+    public final int parallelism;
+    public final boolean approximate;
+    public final long precisionThreshold;
+    public final boolean exactReduce;
+    public final int maxExactIds;
 
 
-    private UndupByParentsAggregatorBuilder(String name, String path, boolean resilient, boolean cache_bitsets, boolean compensateNonExisting, int dbgLvl) {
+    private UndupByParentsAggregatorBuilder(String name, String path, boolean resilient, boolean cache_bitsets, boolean compensateNonExisting,
+            boolean approximate, long precisionThreshold, boolean exactReduce, int maxExactIds, int parallelism, int dbgLvl) {
         super(name);
         this.resilient = resilient;
         this.cache_bitsets = cache_bitsets;
@@ -70,6 +77,11 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
             throw new IllegalArgumentException("[parent_path] should not be empty: [" + name + "]");
         }
         this.compensateNonExisting = compensateNonExisting;
+        this.approximate = approximate;
+        this.precisionThreshold = precisionThreshold;
+        this.exactReduce = exactReduce;
+        this.maxExactIds = maxExactIds;
+        this.parallelism = parallelism;
         this.debug_lvl = dbgLvl;
     }
     private UndupByParentsAggregatorBuilder(UndupByParentsAggregatorBuilder other) {
@@ -78,6 +90,11 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
         this.cache_bitsets = other.cache_bitsets;
         this.parentPaths = Arrays.copyOf(other.parentPaths,  other.parentPaths.length);
         this.compensateNonExisting = other.compensateNonExisting;
+        this.approximate = other.approximate;
+        this.precisionThreshold = other.precisionThreshold;
+        this.exactReduce = other.exactReduce;
+        this.maxExactIds = other.maxExactIds;
+        this.parallelism = other.parallelism;
         this.debug_lvl = other.debug_lvl;
     }
 
@@ -108,6 +125,11 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
         resilient = in.readBoolean();
         cache_bitsets = in.readBoolean();
         compensateNonExisting = in.readBoolean();
+        approximate = in.readBoolean();
+        precisionThreshold = in.readLong();
+        exactReduce = in.readBoolean();
+        maxExactIds = in.readInt();
+        parallelism = in.readInt();
         debug_lvl = in.readVInt();
     }
 
@@ -120,13 +142,19 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
         out.writeBoolean(resilient);
         out.writeBoolean(cache_bitsets);
         out.writeBoolean(compensateNonExisting);
+        out.writeBoolean(approximate);
+        out.writeLong(precisionThreshold);
+        out.writeBoolean(exactReduce);
+        out.writeInt(maxExactIds);
+        out.writeInt(parallelism);
         out.writeVInt(debug_lvl);
     }
 
 
     public static AggregationSpec createAggregationSpec() {
         AggregationSpec x = new AggregationSpec(NAME, UndupByParentsAggregatorBuilder::new, UndupByParentsAggregatorBuilder::parse);
-        return x.addResultReader(UndupByParentsInternal::new);
+        x.addResultReader(UndupByParentsInternal::new);
+        return x.addResultReader(UndupByParentsBucketInternal.NAME, UndupByParentsBucketInternal::new);
     }
 
 
@@ -164,6 +192,11 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
         boolean resilient = false;
         boolean cache = true;
         boolean compensateNonExisting = true;
+        boolean approximate = false;
+        long precisionThreshold = -1;
+        boolean exactReduce = false;
+        int maxExactIds = DEFAULT_MAX_EXACT_IDS;
+        int parallelism = -1;
         while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
             switch (token) {
             case FIELD_NAME:
@@ -188,6 +221,14 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
                     compensateNonExisting = parser.booleanValue();
                     continue;
                 }
+                if ("approximate".equals(currentFieldName)) {
+                    approximate = parser.booleanValue();
+                    continue;
+                }
+                if ("exact_reduce".equals(currentFieldName)) {
+                    exactReduce = parser.booleanValue();
+                    continue;
+                }
                 if ("debug".equals(currentFieldName)) {
                     dbgLvl = parser.booleanValue() ? 1 : 0;
                     continue;
@@ -198,6 +239,20 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
                     dbgLvl = parser.intValue();
                     continue;
                 }
+                if ("parallelism".equals(currentFieldName)) {
+                    parallelism = parser.intValue();
+                    continue;
+                }
+                if ("precision_threshold".equals(currentFieldName)) {
+                    precisionThreshold = parser.longValue();
+                    continue;
+                }
+                if ("max_exact_ids".equals(currentFieldName)) {
+                    maxExactIds = parser.intValue();
+                    if (maxExactIds < 1)
+                        throw new IllegalArgumentException("[max_exact_ids] must be greater than 0, found [" + maxExactIds + "]: [" + aggregationName + "]");
+                    continue;
+                }
                 break;
             default:
                 throwParsingException (parser, aggregationName, "Unexpected token [%s]", token);
@@ -207,7 +262,7 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
 
         if (parent_paths == null)
             throwParsingException (parser, aggregationName, "Missing [parent_paths] field");
-        return new UndupByParentsAggregatorBuilder(aggregationName, parent_paths, resilient, cache, compensateNonExisting, dbgLvl);
+        return new UndupByParentsAggregatorBuilder(aggregationName, parent_paths, resilient, cache, compensateNonExisting, approximate, precisionThreshold, exactReduce, maxExactIds, parallelism, dbgLvl);
     }
 
     private static void throwParsingException (XContentParser parser, String name, String msg) {
@@ -242,6 +297,15 @@ public class UndupByParentsAggregatorBuilder extends AbstractAggregationBuilder<
         builder.field("parent_paths", parentPathsAsString(parentPaths));
         builder.field("resilient", resilient);
         builder.field("cache_bitsets", cache_bitsets);
+        if (approximate) {
+            builder.field("approximate", approximate);
+            if (precisionThreshold >= 0) builder.field("precision_threshold", precisionThreshold);
+        }
+        if (exactReduce) {
+            builder.field("exact_reduce", exactReduce);
+            builder.field("max_exact_ids", maxExactIds);
+        }
+        if (parallelism > 0) builder.field("parallelism", parallelism);
         builder.endObject();
         return builder;
     }
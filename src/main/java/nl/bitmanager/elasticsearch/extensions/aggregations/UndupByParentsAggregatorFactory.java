@@ -27,6 +27,7 @@ import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.search.aggregations.Aggregator;
 import org.elasticsearch.search.aggregations.AggregatorFactories.Builder;
 import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.metrics.HyperLogLogPlusPlus;
 import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
 import org.elasticsearch.search.aggregations.support.ValuesSource.Bytes.WithOrdinals;
 import org.elasticsearch.search.internal.SearchContext;
@@ -37,6 +38,12 @@ public class UndupByParentsAggregatorFactory extends AggregatorFactory {
     public final boolean cache_bitsets;
     public final int debug_lvl;
     public final boolean compensateNonExisting;
+    public final int parallelism;
+    public final boolean approximate;
+    /** HLL precision, only used when approximate */
+    public final int precision;
+    public final boolean exactReduce;
+    public final int maxExactIds;
 
 
     public UndupByParentsAggregatorFactory(UndupByParentsAggregatorBuilder bldr,
@@ -49,6 +56,11 @@ public class UndupByParentsAggregatorFactory extends AggregatorFactory {
         this.parentPaths = bldr.parentPaths;
         this.cache_bitsets = bldr.cache_bitsets;
         this.compensateNonExisting = bldr.compensateNonExisting;
+        this.parallelism = UndupExecutor.INSTANCE.resolveParallelism(bldr.parallelism);
+        this.approximate = bldr.approximate;
+        this.exactReduce = bldr.exactReduce && !bldr.approximate;
+        this.maxExactIds = bldr.maxExactIds;
+        this.precision = bldr.precisionThreshold < 0 ? HyperLogLogPlusPlus.DEFAULT_PRECISION : HyperLogLogPlusPlus.precisionFromThreshold(bldr.precisionThreshold);
         this.debug_lvl = bldr.debug_lvl;
         this.valuesSourceConfigs = valuesSourceConfigs;
         if (debug_lvl > 0) System.out.printf("Created %s[name=%s parent_paths=%s]\n", getClass().getSimpleName(), name, UndupByParentsAggregatorBuilder.parentPathsAsString(parentPaths));
@@ -78,7 +90,22 @@ public class UndupByParentsAggregatorFactory extends AggregatorFactory {
 
 
         if (debug_lvl > 0) System.out.printf("-- Create aggregation from factory\n");
-        return new UndupByParentsAggregator(this, name, context, parent, pipelineAggregators, metaData, valuesSources);
+        if (factories.countAggregators() > 0) {
+            checkSubAggregationsAllowed();
+            return new UndupByParentsBucketAggregator(this, name, factories, context, parent, pipelineAggregators, metaData, valuesSources);
+        }
+        return new UndupByParentsAggregator(this, name, context, parent, pipelineAggregators, metaData, valuesSources, false);
+    }
+
+    /**
+     * Sub-aggregations are run over the parent docs of the last level, so that level must be a join parent.
+     * The parents are replayed per shard, so the cross-shard modes are not supported.
+     */
+    private void checkSubAggregationsAllowed() {
+        if (approximate || exactReduce)
+            throw new IllegalArgumentException("Aggregation [" + name + "]: sub-aggregations cannot be combined with approximate or exact_reduce.");
+        if (parentPaths.length == 1 && "_nested_".equals(parentPaths[0]))
+            throw new IllegalArgumentException("Aggregation [" + name + "]: sub-aggregations need a join parent in [parent_paths].");
     }
 
 }
@@ -0,0 +1,178 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.BucketCollector;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.MultiBucketCollector;
+import org.elasticsearch.search.aggregations.bucket.DeferableBucketAggregator;
+import org.elasticsearch.search.aggregations.bucket.DeferringBucketCollector;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.ValuesSource.Bytes.WithOrdinals;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Bucket variant of bm_undup_by_parents, which is used when the aggregation has sub-aggregations.
+ *
+ * The undupping itself is done by an embedded {@link UndupByParentsAggregator}, which keeps the ordinal sets of the last level.
+ * All sub-aggregations are deferred: nothing is collected into them while the children are collected.
+ * Instead, the unique parent docs of the last level are replayed into them once the level walk is done.
+ * The doc_count of a bucket is the number of replayed parents.
+ *
+ * Replayed docs have a constant score of 1.
+ */
+public class UndupByParentsBucketAggregator extends DeferableBucketAggregator {
+    private final UndupByParentsAggregator undupper;
+    private final int debug_lvl;
+
+    protected UndupByParentsBucketAggregator(UndupByParentsAggregatorFactory factory,
+            String name,
+            AggregatorFactories factories,
+            SearchContext context,
+            Aggregator parent,
+            List<PipelineAggregator> pipelineAggregators,
+            Map<String, Object> metaData,
+            WithOrdinals[] valuesSources) throws IOException {
+        super(name, factories, context, parent, pipelineAggregators, metaData);
+        this.debug_lvl = factory.debug_lvl;
+        this.undupper = new UndupByParentsAggregator(factory, name, context, this, Collections.emptyList(), null, valuesSources, true);
+    }
+
+    @Override
+    protected void doPreCollection() throws IOException {
+        super.doPreCollection();
+        undupper.preCollection();
+    }
+
+    @Override
+    protected LeafBucketCollector getLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        return undupper.getLeafCollector(ctx);
+    }
+
+    @Override
+    protected void doPostCollection() throws IOException {
+        undupper.postCollection();
+    }
+
+    @Override
+    protected boolean shouldDefer(Aggregator aggregator) {
+        return true;
+    }
+
+    @Override
+    public DeferringBucketCollector getDeferringCollector() {
+        return new ParentReplayer();
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long bucket) throws IOException {
+        runDeferredCollections(bucket);
+        //Like in UndupByParentsAggregator, the profile covers all buckets, so it is only exported if we are top-level
+        Map<String, Object> profile = parent() == null ? undupper.exportedProfile() : null;
+        return new UndupByParentsBucketInternal(name, bucketDocCount(bucket), bucketAggregations(bucket), profile, pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new UndupByParentsBucketInternal(name, 0, buildEmptySubAggregations(), null, pipelineAggregators(), metaData());
+    }
+
+    /**
+     * Collects nothing during the normal collection.
+     * The first time buckets are selected, the parents of all buckets are replayed into the sub-aggregations.
+     */
+    private class ParentReplayer extends DeferringBucketCollector implements UndupByParentsAggregator.ParentDocCollector {
+        private final ConstantScorer scorer = new ConstantScorer();
+        private BucketCollector collector;
+        private LeafBucketCollector leafCollector;
+        private boolean replayed;
+
+        @Override
+        public void setDeferredCollector(Iterable<BucketCollector> deferredCollectors) {
+            this.collector = MultiBucketCollector.wrap(deferredCollectors);
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+
+        @Override
+        public LeafBucketCollector getLeafCollector(LeafReaderContext ctx) throws IOException {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+
+        @Override
+        public void preCollection() throws IOException {
+            collector.preCollection();
+        }
+
+        @Override
+        public void postCollection() throws IOException {
+        }
+
+        @Override
+        public void prepareSelectedBuckets(long... selectedBuckets) throws IOException {
+            if (replayed) return;
+            replayed = true;
+            long t0 = System.nanoTime();
+            undupper.replayParents(this);
+            collector.postCollection();
+            if (debug_lvl > 0) System.out.printf("REPLAY: %.3f ms\n", (System.nanoTime() - t0) / 1000000.0);
+        }
+
+        @Override
+        public void setNextReader(LeafReaderContext leaf) throws IOException {
+            leafCollector = collector.getLeafCollector(leaf);
+            leafCollector.setScorer(scorer);
+        }
+
+        @Override
+        public void collect(int doc, long bucket) throws IOException {
+            scorer.doc = doc;
+            collectBucket(leafCollector, doc, bucket);
+        }
+    }
+
+    private static class ConstantScorer extends Scorable {
+        int doc = -1;
+
+        @Override
+        public float score() {
+            return 1f;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.InternalSingleBucketAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+/**
+ * Result of the {@link UndupByParentsBucketAggregator}: the number of unique parents plus the sub-aggregations over them.
+ */
+public class UndupByParentsBucketInternal extends InternalSingleBucketAggregation {
+    public static final String NAME = UndupByParentsAggregatorBuilder.NAME + "_bucket";
+
+    /** merged UndupProfile's of the shards (see UndupProfile.toMap), or null if not profiled */
+    private final Map<String, Object> profile;
+
+    public UndupByParentsBucketInternal(String name, long docCount, InternalAggregations aggregations, Map<String, Object> profile,
+            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+        super(name, docCount, aggregations, pipelineAggregators, metaData);
+        this.profile = profile;
+    }
+
+    /**
+     * Read from a stream.
+     */
+    public UndupByParentsBucketInternal(StreamInput in) throws IOException {
+        super(in);
+        profile = in.readBoolean() ? in.readMap() : null;
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        super.doWriteTo(out);
+        out.writeBoolean(profile != null);
+        if (profile != null) out.writeMap(profile);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    protected InternalSingleBucketAggregation newAggregation(String name, long docCount, InternalAggregations subAggregations) {
+        return new UndupByParentsBucketInternal(name, docCount, subAggregations, profile, pipelineAggregators(), getMetaData());
+    }
+
+    /**
+     * Profiles are merged by summing their numbers, like in {@link UndupByParentsInternal}.
+     */
+    @Override
+    public InternalAggregation doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        Map<String, Object> profile = null;
+        for (InternalAggregation aggregation : aggregations)
+            profile = UndupProfile.merge(profile, ((UndupByParentsBucketInternal) aggregation).profile);
+        UndupByParentsBucketInternal reduced = (UndupByParentsBucketInternal) super.doReduce(aggregations, reduceContext);
+        return new UndupByParentsBucketInternal(reduced.getName(), reduced.getDocCount(), reduced.getAggregations(), profile,
+                pipelineAggregators(), getMetaData());
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        super.doXContentBody(builder, params);
+        if (profile != null) builder.field("profile", profile);
+        return builder;
+    }
+}
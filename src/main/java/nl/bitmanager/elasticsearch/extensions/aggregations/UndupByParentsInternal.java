@@ -20,14 +20,18 @@
 package nl.bitmanager.elasticsearch.extensions.aggregations;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.metrics.HyperLogLogPlusPlus;
 import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
 import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
 
@@ -35,13 +39,42 @@ import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
  * Result of the {@link UndupByParentsAggregator}.
  */
 public class UndupByParentsInternal extends InternalNumericMetricsAggregation.SingleValue implements UndupByParents {
+    /** exact count */
     private final long count;
 
+    /** sketch of the undupped parents in approximate mode (single bucket), or null */
+    private final HyperLogLogPlusPlus sketch;
+
+    /** hashed ids of the undupped parents in exact_reduce mode (see IdHashes), or null */
+    private final long[] hashes;
+
+    /** max_exact_ids and precision of the request: if the united hashes exceed maxExactIds, they are folded into a sketch */
+    private final int maxExactIds;
+    private final int precision;
+
+    /** merged UndupProfile's of the shards (see UndupProfile.toMap), or null if not profiled */
+    private final Map<String, Object> profile;
+
     public UndupByParentsInternal(String name, long count, List<PipelineAggregator> pipelineAggregators,
             Map<String, Object> metaData) {
+        this(name, count, null, null, pipelineAggregators, metaData);
+    }
+
+    public UndupByParentsInternal(String name, long count, HyperLogLogPlusPlus sketch, Map<String, Object> profile,
+            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+        this(name, count, sketch, null, 0, 0, profile, pipelineAggregators, metaData);
+    }
+
+    public UndupByParentsInternal(String name, long count, HyperLogLogPlusPlus sketch, long[] hashes, int maxExactIds, int precision,
+            Map<String, Object> profile, List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
 
         super(name, pipelineAggregators, metaData);
         this.count = count;
+        this.sketch = sketch;
+        this.hashes = hashes;
+        this.maxExactIds = maxExactIds;
+        this.precision = precision;
+        this.profile = profile;
     }
 
     /**
@@ -50,12 +83,24 @@ public class UndupByParentsInternal extends InternalNumericMetricsAggregation.Si
     public UndupByParentsInternal(StreamInput in) throws IOException {
         super(in);
         count = in.readLong();
-
+        sketch = in.readBoolean() ? HyperLogLogPlusPlus.readFrom(in, BigArrays.NON_RECYCLING_INSTANCE) : null;
+        hashes = in.readBoolean() ? IdHashes.readFrom(in) : null;
+        maxExactIds = in.readVInt();
+        precision = in.readVInt();
+        profile = in.readBoolean() ? in.readMap() : null;
     }
 
     @Override
     protected void doWriteTo(StreamOutput out) throws IOException {
         out.writeLong(count);
+        out.writeBoolean(sketch != null);
+        if (sketch != null) sketch.writeTo(0, out);
+        out.writeBoolean(hashes != null);
+        if (hashes != null) IdHashes.writeTo(out, hashes);
+        out.writeVInt(maxExactIds);
+        out.writeVInt(precision);
+        out.writeBoolean(profile != null);
+        if (profile != null) out.writeMap(profile);
     }
 
     @Override
@@ -63,34 +108,74 @@ public class UndupByParentsInternal extends InternalNumericMetricsAggregation.Si
         return UndupByParentsAggregatorBuilder.NAME;
     }
 
+    /**
+     * Exact counts are summed. Sketches are merged, which undups parents that were found on multiple shards.
+     * Sets of hashed ids are united. If some shard fell back to a sketch, or if the union exceeds max_exact_ids,
+     * the sets are folded into a sketch.
+     * Profiles are merged by summing their numbers.
+     */
     @Override
     public UndupByParentsInternal doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
         long count = 0;
+        HyperLogLogPlusPlus reduced = null;
+        List<long[]> hashSets = null;
+        int maxExactIds = 0;
+        int precision = 0;
+        Map<String, Object> profile = null;
         for (InternalAggregation aggregation : aggregations) {
-            count += ((UndupByParentsInternal) aggregation).count;
+            UndupByParentsInternal other = (UndupByParentsInternal) aggregation;
+            count += other.count;
+            profile = UndupProfile.merge(profile, other.profile);
+            if (other.hashes != null) {
+                if (hashSets == null) hashSets = new ArrayList<long[]>(aggregations.size());
+                hashSets.add(other.hashes);
+                maxExactIds = other.maxExactIds;
+                precision = other.precision;
+            }
+            if (other.sketch == null) continue;
+            if (reduced == null) reduced = new HyperLogLogPlusPlus(other.sketch.precision(), BigArrays.NON_RECYCLING_INSTANCE, 1);
+            reduced.merge(0, other.sketch, 0);
+        }
+        if (hashSets != null && reduced == null) {
+            long[] union = IdHashes.union(hashSets, maxExactIds);
+            if (union != null)
+                return new UndupByParentsInternal(name, count, null, union, maxExactIds, precision, profile, pipelineAggregators(), getMetaData());
+            reduced = new HyperLogLogPlusPlus(precision, BigArrays.NON_RECYCLING_INSTANCE, 1);
         }
-        return new UndupByParentsInternal(name, count, pipelineAggregators(), getMetaData());
+        if (hashSets != null) {
+            for (long[] set: hashSets)
+                for (long h: set) reduced.collect(0, IdHashes.toSketchHash(h));
+        }
+        return new UndupByParentsInternal(name, count, reduced, profile, pipelineAggregators(), getMetaData());
+    }
+
+    public boolean isApproximate() {
+        return sketch != null;
     }
 
     @Override
     public double value() {
-        return count;
+        return getValue();
     }
 
     @Override
     public long getValue() {
+        if (sketch != null) return count + sketch.cardinality(0);
+        if (hashes != null) return count + hashes.length;
         return count;
     }
 
     @Override
     public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
-        builder.field(CommonFields.DOC_COUNT.getPreferredName(), count);
+        builder.field(CommonFields.DOC_COUNT.getPreferredName(), getValue());
+        if (sketch != null) builder.field("approximate", true);
+        if (profile != null) builder.field("profile", profile);
         return builder;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(super.hashCode(), count);
+        return Objects.hash(super.hashCode(), count, sketch == null ? 0 : sketch.hashCode(0), Arrays.hashCode(hashes));
     }
 
     @Override
@@ -99,7 +184,10 @@ public class UndupByParentsInternal extends InternalNumericMetricsAggregation.Si
         if (obj == null || getClass() != obj.getClass()) return false;
         if (super.equals(obj) == false) return false;
         UndupByParentsInternal other = (UndupByParentsInternal) obj;
-        return count == other.count;
+        if (count != other.count) return false;
+        if (!Arrays.equals(hashes, other.hashes)) return false;
+        if (sketch == null || other.sketch == null) return sketch == other.sketch;
+        return sketch.equals(0, other.sketch);
     }
 
 }
@@ -0,0 +1,33 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import nl.bitmanager.elasticsearch.support.SegmentExecutor;
+
+/**
+ * Executor that is used to run the per-segment post-collection work of the undup aggregator in parallel.
+ * The size of the bm_undup pool is determined by the node setting bitmanager.undup.parallelism, which is also the default
+ * degree of parallelism for an aggregation.
+ */
+public class UndupExecutor {
+    public static final SegmentExecutor INSTANCE = new SegmentExecutor("bm_undup", "bitmanager.undup.parallelism");
+
+    private UndupExecutor() {
+    }
+}
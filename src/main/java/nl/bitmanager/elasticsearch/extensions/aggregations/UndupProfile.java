@@ -0,0 +1,146 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters of 1 undup aggregator on 1 shard.
+ * Timings are registered per phase (collect, each parent level, compensate, count).
+ * The counters can be updated from multiple threads.
+ *
+ * The profile is exported as a map, which is included in the aggregation result if the search is profiled or debug is on.
+ * Profiles of multiple shards are merged by summing the numbers.
+ */
+public class UndupProfile {
+    private final Map<String, Long> timings;
+    private final AtomicLong docsVisited;
+    private final AtomicLong setsAllocated;
+    private final AtomicLong candidateSegments;
+    private int earlyTerminations;
+    private int mapsBuilt;
+    private int mapsCached;
+
+    public UndupProfile() {
+        timings = new LinkedHashMap<String, Long>();
+        docsVisited = new AtomicLong();
+        setsAllocated = new AtomicLong();
+        candidateSegments = new AtomicLong();
+    }
+
+    /** Adds the time since t0 to the phase and returns the current time, so that it can be used as t0 for the next phase */
+    public long phase (String name, long t0) {
+        long now = System.nanoTime();
+        Long prev = timings.get(name);
+        timings.put(name, (prev == null ? 0 : prev) + (now - t0));
+        return now;
+    }
+
+    public void addDocsVisited (long n) {
+        docsVisited.addAndGet(n);
+    }
+
+    public void addSetsAllocated (long n) {
+        setsAllocated.addAndGet(n);
+    }
+
+    /** Registers a segment where only the candidate docs were visited (see CandidateDocs) */
+    public void addCandidateSegment () {
+        candidateSegments.incrementAndGet();
+    }
+
+    /** Registers a sweep over a level that stopped because all wanted ordinals were seen (see OrdinalSaturation) */
+    public void addEarlyTermination () {
+        earlyTerminations++;
+    }
+
+    public int earlyTerminations() {
+        return earlyTerminations;
+    }
+
+    public void addOrdinalMap (boolean cached) {
+        if (cached) mapsCached++; else mapsBuilt++;
+    }
+
+    public long totalNanos() {
+        long ret = 0;
+        for (Long t: timings.values()) ret += t;
+        return ret;
+    }
+
+    public Map<String, Long> timings() {
+        return timings;
+    }
+
+    public long docsVisited() {
+        return docsVisited.get();
+    }
+
+    public long setsAllocated() {
+        return setsAllocated.get();
+    }
+
+    public int mapsBuilt() {
+        return mapsBuilt;
+    }
+
+    public int mapsCached() {
+        return mapsCached;
+    }
+
+    public Map<String, Object> toMap (MemoryAccounter memory) {
+        Map<String, Object> ret = new LinkedHashMap<String, Object>();
+        ret.put("shards", 1L);
+        Map<String, Object> t = new LinkedHashMap<String, Object>();
+        for (Entry<String, Long> kvp: timings.entrySet()) t.put(kvp.getKey(), kvp.getValue());
+        t.put("total", totalNanos());
+        ret.put("time_in_nanos", t);
+        ret.put("docs_visited", docsVisited.get());
+        ret.put("sets_allocated", setsAllocated.get());
+        ret.put("candidate_segments", candidateSegments.get());
+        ret.put("early_terminations", (long)earlyTerminations);
+        ret.put("ordinal_maps_built", (long)mapsBuilt);
+        ret.put("ordinal_maps_cached", (long)mapsCached);
+        ret.put("peak_bytes", memory.peak());
+        return ret;
+    }
+
+    /** Merges 2 exported profiles by summing their numbers. Sub-maps are merged recursively */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> merge (Map<String, Object> a, Map<String, Object> b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        Map<String, Object> ret = new LinkedHashMap<String, Object>(a);
+        for (Entry<String, Object> kvp: b.entrySet()) {
+            Object x = ret.get(kvp.getKey());
+            Object y = kvp.getValue();
+            if (x instanceof Number && y instanceof Number)
+                ret.put(kvp.getKey(), ((Number)x).longValue() + ((Number)y).longValue());
+            else if (x instanceof Map && y instanceof Map)
+                ret.put(kvp.getKey(), merge((Map<String, Object>)x, (Map<String, Object>)y));
+            else if (x == null)
+                ret.put(kvp.getKey(), y);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node wide statistics of the undup aggregator. They are exposed via _bm/stats.
+ */
+public class UndupStats {
+    private static final LongAdder aggregations = new LongAdder();
+    private static final LongAdder docsVisited = new LongAdder();
+    private static final LongAdder setsAllocated = new LongAdder();
+    private static final LongAdder ordinalMapsBuilt = new LongAdder();
+    private static final LongAdder ordinalMapsCached = new LongAdder();
+    private static final LongAdder earlyTerminations = new LongAdder();
+    private static final LongAdder warmups = new LongAdder();
+    private static final LongAdder warmupNanos = new LongAdder();
+    private static final AtomicLong maxPeakBytes = new AtomicLong();
+    private static final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<String, LongAdder>();
+
+    /** Registers the profile of a finished aggregator */
+    public static void record (UndupProfile profile, MemoryAccounter memory) {
+        aggregations.increment();
+        docsVisited.add(profile.docsVisited());
+        setsAllocated.add(profile.setsAllocated());
+        ordinalMapsBuilt.add(profile.mapsBuilt());
+        ordinalMapsCached.add(profile.mapsCached());
+        earlyTerminations.add(profile.earlyTerminations());
+        for (Entry<String, Long> kvp: profile.timings().entrySet())
+            phaseNanos.computeIfAbsent(phaseKey(kvp.getKey()), k -> new LongAdder()).add(kvp.getValue());
+
+        long peak = memory.peak();
+        long p;
+        while (peak > (p = maxPeakBytes.get()) && !maxPeakBytes.compareAndSet(p, peak));
+    }
+
+    public static void recordWarmup (long nanos) {
+        warmups.increment();
+        warmupNanos.add(nanos);
+    }
+
+    /** Levels are summed into 1 phase, since the number of levels differs per aggregation */
+    private static String phaseKey (String phase) {
+        return phase.startsWith("level_") ? "levels" : phase;
+    }
+
+    /** Returns a snapshot of the statistics */
+    public static Map<String, Object> toMap () {
+        Map<String, Object> ret = new TreeMap<String, Object>();
+        ret.put("aggregations", aggregations.sum());
+        ret.put("docs_visited", docsVisited.sum());
+        ret.put("sets_allocated", setsAllocated.sum());
+        ret.put("ordinal_maps_built", ordinalMapsBuilt.sum());
+        ret.put("ordinal_maps_cached", ordinalMapsCached.sum());
+        ret.put("early_terminations", earlyTerminations.sum());
+        ret.put("max_peak_bytes", maxPeakBytes.get());
+        ret.put("warmups", warmups.sum());
+        ret.put("warmup_time_in_nanos", warmupNanos.sum());
+        Map<String, Object> phases = new TreeMap<String, Object>();
+        for (Entry<String, LongAdder> kvp: phaseNanos.entrySet()) phases.put(kvp.getKey(), kvp.getValue().sum());
+        ret.put("time_in_nanos", phases);
+
+        long cachedBytes = 0;
+        int cachedMaps = 0;
+        for (ParentOrdinalMapCache.Entry e: ParentOrdinalMapCache.getEntries()) {
+            cachedBytes += e.ramBytesUsed();
+            cachedMaps++;
+        }
+        ret.put("ordinal_map_cache_count", (long)cachedMaps);
+        ret.put("ordinal_map_cache_bytes", cachedBytes);
+        return ret;
+    }
+}
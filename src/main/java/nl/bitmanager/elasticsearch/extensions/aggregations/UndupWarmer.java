@@ -0,0 +1,245 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+
+/**
+ * Pre-warms the structures that are needed by bm_undup_by_parents after each refresh.
+ *
+ * The index setting index.bitmanager.undup.warm_parent_paths holds a list of parent_paths (levels separated by ';').
+ * For each of these paths the global ordinals of the join id fields, the BitsetFilterCache entries of the parent filters
+ * and the ParentOrdinalMaps are loaded for a new reader.
+ * This is done via a listener on the internal reader manager of the engine, which fires before the
+ * reader is exposed to searches, so that the first search after a refresh does not have to pay for it.
+ *
+ * The listener is registered when a shard is started. If the engine is reset afterwards, warming stops for that shard.
+ */
+public class UndupWarmer implements IndexEventListener {
+    public static final Setting<List<String>> WARM_SETTING = Setting.listSetting("index.bitmanager.undup.warm_parent_paths",
+            Collections.emptyList(), Function.identity(), Property.IndexScope, Property.Dynamic);
+
+    private IndexService indexService;
+
+    @Override
+    public void afterIndexCreated(IndexService indexService) {
+        this.indexService = indexService;
+    }
+
+    @Override
+    public void afterIndexShardStarted(IndexShard indexShard) {
+        if (indexService == null) return;
+        try {
+            ReferenceManager<? extends DirectoryReader> mgr = getInternalReaderManager(indexShard);
+            if (mgr == null) {
+                UndupByParentsAggregatorBuilder.logger.warn("UndupWarmer: no reader manager for " + indexShard.shardId());
+                return;
+            }
+            mgr.addListener(new RefreshListener(indexShard, mgr));
+        } catch (Exception e) {
+            UndupByParentsAggregatorBuilder.logger.warn("UndupWarmer: cannot register for " + indexShard.shardId() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private class RefreshListener implements ReferenceManager.RefreshListener {
+        private final IndexShard indexShard;
+        private final ReferenceManager<? extends DirectoryReader> mgr;
+
+        RefreshListener (IndexShard indexShard, ReferenceManager<? extends DirectoryReader> mgr) {
+            this.indexShard = indexShard;
+            this.mgr = mgr;
+        }
+
+        @Override
+        public void beforeRefresh() {
+        }
+
+        @Override
+        public void afterRefresh(boolean didRefresh) {
+            if (!didRefresh) return;
+            List<String> paths = WARM_SETTING.get(indexShard.indexSettings().getSettings());
+            if (paths.isEmpty()) return;
+
+            DirectoryReader reader = null;
+            try {
+                reader = mgr.acquire();
+                long t0 = System.nanoTime();
+                for (String path: paths) warm (indexShard, reader, path);
+                UndupStats.recordWarmup(System.nanoTime()-t0);
+                if (UndupByParentsAggregatorBuilder.logger.isDebugEnabled())
+                    UndupByParentsAggregatorBuilder.logger.debug(String.format("UndupWarmer: warmed %s in %.3f ms", indexShard.shardId(), (System.nanoTime()-t0) / 1000000.0));
+            } catch (Exception e) {
+                UndupByParentsAggregatorBuilder.logger.warn("UndupWarmer: warming " + indexShard.shardId() + " failed: " + e.getMessage(), e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        release(reader);
+                    } catch (IOException e) {
+                        UndupByParentsAggregatorBuilder.logger.warn("UndupWarmer: release failed: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <R extends DirectoryReader> void release (DirectoryReader reader) throws IOException {
+            ((ReferenceManager<R>)mgr).release((R)reader);
+        }
+    }
+
+    /**
+     * Loads the global ordinals, parent bitsets and ordinal maps for one parent path.
+     * The nested placeholder (_nested_) is skipped.
+     */
+    private void warm (IndexShard indexShard, DirectoryReader reader, String path) throws IOException {
+        String[] types = path.split("[,;]+");
+        QueryShardContext qsc = indexService.newQueryShardContext(indexShard.shardId().id(), reader, () -> 0L, null);
+        UndupByParentsAggregatorBuilder._ParentJoinGetter getter = new UndupByParentsAggregatorBuilder._ParentJoinGetter(indexService.mapperService());
+        if (getter.getJoinFieldMapper() == null) return;
+
+        final int levels = types.length;
+        MappedFieldType[] fieldTypes = new MappedFieldType[levels];
+        IndexOrdinalsFieldData[] globalFieldData = new IndexOrdinalsFieldData[levels];
+        BitSetProducer[] parentBitsets = new BitSetProducer[levels];
+        for (int lvl=0; lvl<levels; lvl++) {
+            String type = types[lvl].trim();
+            if (type.length() == 0 || "_nested_".equals(type)) continue;
+            FieldMapper idMapper = getter.getIdMapper(type, true);
+            if (idMapper == null) {
+                UndupByParentsAggregatorBuilder.logger.warn("UndupWarmer: parent type [" + type + "] not found in " + indexShard.shardId());
+                continue;
+            }
+            Query parentFilter = getter.getParentFilter();
+            fieldTypes[lvl] = idMapper.fieldType();
+            IndexOrdinalsFieldData fieldData = qsc.getForField(fieldTypes[lvl]);
+            globalFieldData[lvl] = fieldData.loadGlobal(reader);
+
+            parentBitsets[lvl] = indexService.cache().bitsetFilterCache().getBitSetProducer(parentFilter);
+            for (LeafReaderContext leaf: reader.leaves()) parentBitsets[lvl].getBitSet(leaf);
+        }
+
+        CircuitBreakerService breakerService = indexService.getBigArrays().breakerService();
+        CircuitBreaker breaker = breakerService == null ? null : breakerService.getBreaker(CircuitBreaker.FIELDDATA);
+        for (int lvl=1; lvl<levels; lvl++) {
+            if (fieldTypes[lvl-1] == null || fieldTypes[lvl] == null) continue;
+            final IndexOrdinalsFieldData childData = globalFieldData[lvl-1];
+            final IndexOrdinalsFieldData parentData = globalFieldData[lvl];
+            final BitSetProducer childDocs = parentBitsets[lvl-1];
+            ParentOrdinalMapCache.get(reader,
+                    indexShard.shardId().getIndexName(),
+                    indexShard.shardId().id(),
+                    fieldTypes[lvl-1].name(),
+                    fieldTypes[lvl].name(),
+                    breaker,
+                    (memory) -> ParentOrdinalMap.build(reader.leaves(),
+                            getMaxOrd(childData, reader),
+                            getMaxOrd(parentData, reader),
+                            null,
+                            null,
+                            memory,
+                            new ParentOrdinalMap.LeafSource() {
+                                @Override
+                                public DocIdSetIterator docs(LeafReaderContext leaf) throws IOException {
+                                    BitSet bits = childDocs.getBitSet(leaf);
+                                    return bits == null ? null : new BitSetIterator(bits, bits.approximateCardinality());
+                                }
+                                @Override
+                                public SortedSetDocValues ordinals(LeafReaderContext leaf) {
+                                    return childData.load(leaf).getOrdinalsValues();
+                                }
+                                @Override
+                                public SortedSetDocValues parentOrdinals(LeafReaderContext leaf) {
+                                    return parentData.load(leaf).getOrdinalsValues();
+                                }
+                            }));
+        }
+    }
+
+    private static int getMaxOrd (IndexOrdinalsFieldData globalFieldData, DirectoryReader reader) {
+        int max = 0;
+        for (LeafReaderContext leaf: reader.leaves()) {
+            int cnt = (int) globalFieldData.load(leaf).getOrdinalsValues().getValueCount();
+            if (cnt > max) max = cnt;
+        }
+        return max;
+    }
+
+    /**
+     * Fetches the internal reader manager of the engine of the shard.
+     * Both the engine and its reader manager are not accessible by us, so reflection is needed.
+     */
+    @SuppressWarnings("unchecked")
+    private static ReferenceManager<? extends DirectoryReader> getInternalReaderManager (IndexShard indexShard) throws Exception {
+        SpecialPermission.check();
+        Object ret = AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
+            try {
+                Object engine = invoke (indexShard, "getEngineOrNull");
+                if (engine == null) return null;
+                return invoke (engine, "getReferenceManager", Engine.SearcherScope.INTERNAL);
+            } catch (Exception e) {
+                return e;
+            }
+        });
+        if (ret instanceof Exception) throw (Exception)ret;
+        return (ReferenceManager<? extends DirectoryReader>)ret;
+    }
+
+    private static Object invoke (Object obj, String name, Object... args) throws Exception {
+        Class<?> c = obj.getClass();
+        while (c != null) {
+            for (Method m: c.getDeclaredMethods()) {
+                if (!name.equals(m.getName()) || m.getParameterCount() != args.length) continue;
+                m.setAccessible(true);
+                return m.invoke(obj, args);
+            }
+            c = c.getSuperclass();
+        }
+        throw new RuntimeException ("Method [" + name + "] not found in " + obj.getClass().getName());
+    }
+}
@@ -41,7 +41,7 @@ import org.elasticsearch.rest.RestRequest;
 
 
 public class CacheDumpTransportItem extends TransportItemBase {
-    public enum CacheType {Request, Query, Bitset};
+    public enum CacheType {Request, Query, Bitset, Undup};
     public enum SortType {Query, Size};
     private Map<String, Map<String, CacheInfo>> indexCacheMap;
     private Set<String> indexSet;
@@ -83,7 +83,10 @@ public class CacheDumpTransportItem extends TransportItemBase {
         } else if (type.equals("bitset")) {
             cacheType = CacheType.Bitset;
             if (indexExpr == null) indexExpr = "(.*)/$1";
-        }  else throw new RuntimeException ("Unsupported value for type: [" + type + "]. Valid: query, request, bitset.");
+        } else if (type.equals("undup")) {
+            cacheType = CacheType.Undup;
+            if (indexExpr == null) indexExpr = "(.*)/$1";
+        }  else throw new RuntimeException ("Unsupported value for type: [" + type + "]. Valid: query, request, bitset, undup.");
 
         if ("null".equals(indexExpr) || (indexExpr != null && indexExpr.length()==0)) indexExpr = null;
     }
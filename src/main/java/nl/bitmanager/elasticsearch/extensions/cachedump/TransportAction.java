@@ -57,6 +57,7 @@ import org.elasticsearch.indices.IndicesService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 
+import nl.bitmanager.elasticsearch.extensions.aggregations.ParentOrdinalMapCache;
 import nl.bitmanager.elasticsearch.support.RegexReplace;
 import nl.bitmanager.elasticsearch.transport.NodeRequest;
 import nl.bitmanager.elasticsearch.transport.NodeTransportActionBase;
@@ -134,6 +135,7 @@ public class TransportAction extends NodeTransportActionBase {
                     case Query: processQueryCache(); break;
                     case Request: processRequestCache(); break;
                     case Bitset: processBitsetCache(); break;
+                    case Undup: processUndupCache(); break;
                 }
                 return null;
             } catch (Throwable th) {
@@ -305,6 +307,31 @@ public class TransportAction extends NodeTransportActionBase {
             req.setCacheInfo(indexSet, indexCacheMap, null);
         }
 
+        private void processUndupCache() throws Exception {
+            System.out.println("Fetching UNDUP cache");
+            Map<String, Map<String, CacheInfo>> indexCacheMap = new HashMap<String, Map<String, CacheInfo>>();
+            Set<String> indexSet = new HashSet<String>();
+
+            for (ParentOrdinalMapCache.Entry e: ParentOrdinalMapCache.getEntries()) {
+                indexSet.add(e.index);
+                CacheInfo info = new CacheInfo(e.childField + " -> " + e.parentField, e.ramBytesUsed());
+
+                Map<String, CacheInfo> statsPerQuery = indexCacheMap.get(e.index);
+                if (statsPerQuery == null) {
+                    statsPerQuery = new HashMap<String, CacheInfo>();
+                    indexCacheMap.put(e.index, statsPerQuery);
+                }
+
+                CacheInfo existing = statsPerQuery.get(info.query);
+                if (existing != null) {
+                    existing.combine(info);
+                    continue;
+                }
+                statsPerQuery.put(info.query, info);
+            }
+            req.setCacheInfo(indexSet, indexCacheMap, null);
+        }
+
         public static String getDirectoryName(Object obj) throws Exception {
             if (obj == null)
                 return "NULL1";
@@ -0,0 +1,94 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.stats;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import nl.bitmanager.elasticsearch.extensions.aggregations.UndupProfile;
+import nl.bitmanager.elasticsearch.transport.ActionDefinition;
+import nl.bitmanager.elasticsearch.transport.TransportItemBase;
+
+/**
+ * Holds the statistics of the plugin per node and per component (like undup).
+ * The output contains the per-node statistics and a total, where all numbers are summed.
+ */
+public class StatsTransportItem extends TransportItemBase {
+    private final TreeMap<String, Map<String, Object>> nodeStats;
+
+    public StatsTransportItem(ActionDefinition definition) {
+        super(definition);
+        nodeStats = new TreeMap<String, Map<String, Object>>();
+    }
+
+    public StatsTransportItem(ActionDefinition definition, StreamInput in) throws IOException {
+        super(definition, in);
+        nodeStats = new TreeMap<String, Map<String, Object>>();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String node = in.readString();
+            nodeStats.put(node, in.readMap());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeInt(nodeStats.size());
+        for (Entry<String, Map<String, Object>> kvp : nodeStats.entrySet()) {
+            out.writeString(kvp.getKey());
+            out.writeMap(kvp.getValue());
+        }
+    }
+
+    public void addNodeStats(String node, String component, Map<String, Object> stats) {
+        Map<String, Object> x = nodeStats.get(node);
+        if (x == null) nodeStats.put(node, x = new TreeMap<String, Object>());
+        x.put(component, stats);
+    }
+
+    @Override
+    public void consolidateResponse(TransportItemBase _other) {
+        StatsTransportItem other = (StatsTransportItem) _other;
+        for (Entry<String, Map<String, Object>> kvp : other.nodeStats.entrySet()) {
+            if (nodeStats.containsKey(kvp.getKey()))
+                continue;
+            nodeStats.put(kvp.getKey(), kvp.getValue());
+        }
+    }
+
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        Map<String, Object> total = null;
+        for (Map<String, Object> stats: nodeStats.values())
+            total = UndupProfile.merge(total, stats);
+
+        builder.field("activeNodes", nodeStats.size());
+        if (total != null) builder.field("total", total);
+        builder.field("nodes", nodeStats);
+        return builder;
+    }
+
+}
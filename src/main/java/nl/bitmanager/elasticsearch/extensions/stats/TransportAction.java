@@ -0,0 +1,54 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.stats;
+
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import nl.bitmanager.elasticsearch.extensions.aggregations.UndupStats;
+import nl.bitmanager.elasticsearch.transport.NodeRequest;
+import nl.bitmanager.elasticsearch.transport.NodeTransportActionBase;
+import nl.bitmanager.elasticsearch.transport.TransportItemBase;
+
+public class TransportAction extends NodeTransportActionBase {
+
+    @Inject
+    public TransportAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+            TransportService transportService, ActionFilters actionFilters,
+            IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(ActionDefinition.INSTANCE, settings, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver);
+    }
+
+    @Override
+    protected TransportItemBase handleNodeRequest(NodeRequest request) throws Exception {
+        StatsTransportItem ret = new StatsTransportItem(ActionDefinition.INSTANCE);
+        if (debug)
+            System.out.println("StatsTransportAction:handleNodeRequest");
+        ret.addNodeStats(clusterService.localNode().getName(), "undup", UndupStats.toMap());
+        return ret;
+    }
+
+}
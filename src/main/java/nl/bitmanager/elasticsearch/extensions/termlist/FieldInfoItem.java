@@ -20,6 +20,11 @@
 package nl.bitmanager.elasticsearch.extensions.termlist;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.index.DocValuesType;
 import org.apache.lucene.index.FieldInfo;
@@ -102,23 +107,51 @@ public class FieldInfoItem {
         this.stats = stats!=null ? stats : new ShardFieldStats();
     }
 
-    public FieldInfoItem(StreamInput in) throws IOException {
-        index = in.readString();
+    private FieldInfoItem(StreamInput in, String[] strings) throws IOException {
+        index = strings[in.readVInt()];
         name = in.readString();
         key = index + '|' + name;
-        docValuesOptions = in.readString();
-        indexOptions = in.readString();
-        es_type = in.readString();
+        docValuesOptions = strings[in.readVInt()];
+        indexOptions = strings[in.readVInt()];
+        es_type = strings[in.readVInt()];
         stats = new ShardFieldStats(in);
     }
 
-    public void writeTo(StreamOutput out) throws IOException {
-        out.writeString(index);
-        out.writeString(name);
-        out.writeString(docValuesOptions);
-        out.writeString(indexOptions);
-        out.writeString(es_type);
-        stats.writeTo(out);
+    /**
+     * Writes the items. The index name, options and type are mostly the same for all fields,
+     * so they are written once in a table, and the items refer to them by number.
+     */
+    public static void writeItems(StreamOutput out, Collection<FieldInfoItem> items) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        for (FieldInfoItem item : items) {
+            for (String s : new String[] { item.index, item.docValuesOptions, item.indexOptions, item.es_type })
+                strings.putIfAbsent(s, strings.size());
+        }
+        out.writeVInt(strings.size());
+        for (String s : strings.keySet())
+            out.writeString(s);
+
+        out.writeVInt(items.size());
+        for (FieldInfoItem item : items) {
+            out.writeVInt(strings.get(item.index));
+            out.writeString(item.name);
+            out.writeVInt(strings.get(item.docValuesOptions));
+            out.writeVInt(strings.get(item.indexOptions));
+            out.writeVInt(strings.get(item.es_type));
+            item.stats.writeTo(out);
+        }
+    }
+
+    public static List<FieldInfoItem> readItems(StreamInput in) throws IOException {
+        String[] strings = new String[in.readVInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readString();
+
+        int n = in.readVInt();
+        List<FieldInfoItem> ret = new ArrayList<FieldInfoItem>(n);
+        for (int i = 0; i < n; i++)
+            ret.add(new FieldInfoItem(in, strings));
+        return ret;
     }
 
     public void consolidate(FieldInfoItem fld) {
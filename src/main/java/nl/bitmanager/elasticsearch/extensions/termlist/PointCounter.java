@@ -0,0 +1,289 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.PointValues.IntersectVisitor;
+import org.apache.lucene.index.PointValues.Relation;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FutureArrays;
+import org.apache.lucene.util.IntroSorter;
+
+import nl.bitmanager.elasticsearch.support.BytesHelper;
+import nl.bitmanager.elasticsearch.support.BytesRange;
+
+/**
+ * Counts the values of a point field (numbers, dates, ip's, ranges) in 1 segment.
+ *
+ * The values are collected together with their docid: values of at most 8 bytes as longs, wider values
+ * (ip's, ranges) in a flat byte array. After the BKD tree is visited, the values are sorted and counted per run,
+ * so each distinct value is added once to the termlist, with the number of documents containing it.
+ *
+ * If a limit is given (paging) or only candidates are wanted, the buffer is compacted when it is full:
+ * only the first limit distinct (candidate) values are kept, and once limit values are known, higher values
+ * and the cells that only contain higher values are skipped. So the memory is bounded by the page, not by the segment.
+ */
+final class PointCounter implements IntersectVisitor {
+    private final TermList termlist;
+    private final BytesRange range;
+    private final byte[] after;
+    private final int limit;
+    private final TermList candidates;
+    private final int numBytes;
+    private final boolean wide;
+    private long[] values;
+    private byte[] wideValues;
+    private int[] docs;
+    private int count;
+    /** Highest value that can still be in the page, or null if not known yet */
+    private byte[] upper;
+
+    private PointCounter(TermList termlist, BytesRange range, BytesRef after, int limit, TermList candidates, int numBytes) {
+        this.termlist = termlist;
+        this.range = range;
+        this.after = after == null ? null : BytesRef.deepCopyOf(after).bytes;
+        this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+        this.candidates = candidates;
+        this.numBytes = numBytes;
+        this.wide = numBytes > Long.BYTES;
+        docs = new int[64];
+        if (wide)
+            wideValues = new byte[docs.length * numBytes];
+        else
+            values = new long[docs.length];
+    }
+
+    /**
+     * Adds the values of the field in this segment to the termlist.
+     * Only values within the range are added, and if candidates is not null, only values that are in the candidates.
+     * For paging, only values after 'after' are added, and at most limit distinct values (if limit > 0).
+     */
+    static void count(LeafReader rdr, FieldInfo fieldInfo, TermList termlist, BytesRange range, BytesRef after, int limit,
+            TermList candidates) throws IOException {
+        if (fieldInfo.getPointDataDimensionCount() == 0)
+            return;
+        PointValues points = rdr.getPointValues(fieldInfo.name);
+        if (points == null)
+            return;
+        PointCounter counter = new PointCounter(termlist, range, after, limit, candidates,
+                points.getNumDataDimensions() * points.getBytesPerDimension());
+        points.intersect(counter);
+        counter.flush();
+    }
+
+    /** Never called: compare() doesn't return CELL_INSIDE_QUERY, since we need the values */
+    @Override
+    public void visit(int docID) throws IOException {
+    }
+
+    @Override
+    public void visit(int docID, byte[] packedValue) throws IOException {
+        if (range != null && !range.isInRange(packedValue))
+            return;
+        if (after != null && BytesHelper.bytesComparer.compare(packedValue, after) <= 0)
+            return;
+        if (upper != null && BytesHelper.bytesComparer.compare(packedValue, upper) > 0)
+            return;
+        if (count == docs.length) {
+            if (limit < Integer.MAX_VALUE || candidates != null)
+                compact();
+            if (count > docs.length / 2)
+                grow();
+        }
+        if (wide)
+            System.arraycopy(packedValue, 0, wideValues, count * numBytes, numBytes);
+        else
+            values[count] = toLong(packedValue);
+        docs[count++] = docID;
+    }
+
+    /**
+     * Cells outside the range are skipped. All other cells need to report CELL_CROSSES_QUERY:
+     * for CELL_INSIDE_QUERY the BKD tree calls visit(docID) without the value, and the values are what we collect.
+     */
+    @Override
+    public Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+        if (range != null && range.isOutsideRange(minPackedValue, maxPackedValue))
+            return Relation.CELL_OUTSIDE_QUERY;
+        if (after != null && BytesHelper.bytesComparer.compare(maxPackedValue, after) <= 0)
+            return Relation.CELL_OUTSIDE_QUERY;
+        if (upper != null && BytesHelper.bytesComparer.compare(minPackedValue, upper) > 0)
+            return Relation.CELL_OUTSIDE_QUERY;
+        return Relation.CELL_CROSSES_QUERY;
+    }
+
+    private void grow() {
+        docs = ArrayUtil.grow(docs, count + 1);
+        if (wide)
+            wideValues = ArrayUtil.growExact(wideValues, docs.length * numBytes);
+        else
+            values = ArrayUtil.growExact(values, docs.length);
+    }
+
+    /**
+     * Sorts the collected values and keeps each (value, doc) pair once, for the first limit distinct values
+     * that are in the candidates. If limit values are kept, the last one becomes the upper bound.
+     */
+    private void compact() {
+        new ValueSorter().sort(0, count);
+
+        byte[] packed = new byte[numBytes];
+        BytesRef term = new BytesRef(packed);
+        int kept = 0;
+        int distinct = 0;
+        int i = 0;
+        while (i < count && distinct < limit) {
+            int start = i;
+            for (i++; i < count && compareValues(start, i) == 0; i++);
+            if (candidates != null) {
+                copyValue(start, packed);
+                if (candidates.getCount(term) < 0)
+                    continue;
+            }
+            for (int j = start; j < i; j++) {
+                if (j > start && docs[j] == docs[j - 1])
+                    continue;
+                move(j, kept++);
+            }
+            distinct++;
+        }
+        if (distinct == limit) {
+            upper = new byte[numBytes];
+            copyValue(kept - 1, upper);
+        }
+        count = kept;
+    }
+
+    /** Adds each run of equal values to the termlist, with the number of documents in the run */
+    private void flush() {
+        if (count == 0)
+            return;
+        compact();
+
+        byte[] packed = new byte[numBytes];
+        BytesRef term = new BytesRef(packed);
+        int i = 0;
+        while (i < count) {
+            int start = i;
+            for (i++; i < count && compareValues(start, i) == 0; i++);
+            copyValue(start, packed);
+            termlist.add(term, i - start);
+        }
+        values = null;
+        wideValues = null;
+        docs = null;
+    }
+
+    private int compareValues(int i, int j) {
+        if (wide)
+            return FutureArrays.compareUnsigned(wideValues, i * numBytes, (i + 1) * numBytes, wideValues, j * numBytes, (j + 1) * numBytes);
+        return Long.compare(values[i], values[j]);
+    }
+
+    private void copyValue(int i, byte[] packed) {
+        if (wide)
+            System.arraycopy(wideValues, i * numBytes, packed, 0, numBytes);
+        else
+            toBytes(values[i], packed);
+    }
+
+    private void move(int from, int to) {
+        if (from == to)
+            return;
+        if (wide)
+            System.arraycopy(wideValues, from * numBytes, wideValues, to * numBytes, numBytes);
+        else
+            values[to] = values[from];
+        docs[to] = docs[from];
+    }
+
+    /**
+     * Packed values are compared as unsigned bytes. Values shorter than 8 bytes are always positive, so they
+     * sort the same as signed longs. For 8 byte values the sign bit is flipped to get the same order.
+     */
+    private long toLong(byte[] packed) {
+        long ret = 0;
+        for (int i = 0; i < numBytes; i++)
+            ret = (ret << 8) | (packed[i] & 0xFF);
+        return numBytes == Long.BYTES ? ret ^ Long.MIN_VALUE : ret;
+    }
+
+    private void toBytes(long value, byte[] packed) {
+        if (numBytes == Long.BYTES)
+            value ^= Long.MIN_VALUE;
+        for (int i = numBytes - 1; i >= 0; i--) {
+            packed[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Sorts the values, and the docids for equal values
+     */
+    private class ValueSorter extends IntroSorter {
+        private final byte[] scratch = wide ? new byte[numBytes] : null;
+        private final byte[] pivotBytes = wide ? new byte[numBytes] : null;
+        private long pivotValue;
+        private int pivotDoc;
+
+        @Override
+        protected int compare(int i, int j) {
+            int rc = compareValues(i, j);
+            return rc != 0 ? rc : Integer.compare(docs[i], docs[j]);
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+            if (wide) {
+                System.arraycopy(wideValues, i * numBytes, scratch, 0, numBytes);
+                System.arraycopy(wideValues, j * numBytes, wideValues, i * numBytes, numBytes);
+                System.arraycopy(scratch, 0, wideValues, j * numBytes, numBytes);
+            } else {
+                long v = values[i];
+                values[i] = values[j];
+                values[j] = v;
+            }
+            int d = docs[i];
+            docs[i] = docs[j];
+            docs[j] = d;
+        }
+
+        @Override
+        protected void setPivot(int i) {
+            if (wide)
+                System.arraycopy(wideValues, i * numBytes, pivotBytes, 0, numBytes);
+            else
+                pivotValue = values[i];
+            pivotDoc = docs[i];
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+            int rc = wide
+                    ? FutureArrays.compareUnsigned(pivotBytes, 0, numBytes, wideValues, j * numBytes, (j + 1) * numBytes)
+                    : Long.compare(pivotValue, values[j]);
+            return rc != 0 ? rc : Integer.compare(pivotDoc, docs[j]);
+        }
+    }
+}
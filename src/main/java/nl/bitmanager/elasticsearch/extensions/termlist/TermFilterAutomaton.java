@@ -0,0 +1,169 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.automaton.MinimizationOperations;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.apache.lucene.util.automaton.UTF32ToUTF8;
+
+import nl.bitmanager.elasticsearch.support.BytesRange;
+
+/**
+ * Compiles the filter, not_filter and range of a termlist request into 1 automaton, so that Terms.intersect()
+ * can skip the blocks of the terms dictionary that cannot match.
+ *
+ * The filters are java regular expressions, matched with find(). Only expressions that mean exactly the same
+ * in Lucene's RegExp syntax are translated. For other expressions compile() returns null, and the caller
+ * has to match the decoded terms itself.
+ */
+final class TermFilterAutomaton {
+    static final int MAX_DETERMINIZED_STATES = 10000;
+
+    /** Line terminators, as recognized by java's '.' and '$' */
+    private static final String LINE_TERMINATORS = "\n\r\u0085" + (char)0x2028 + (char)0x2029;
+    private static final String NOT_LINE_TERMINATOR = "[^" + LINE_TERMINATORS + "]";
+    private static final String OPT_LINE_TERMINATOR = "(\r\n|[" + LINE_TERMINATORS + "])?";
+
+    private TermFilterAutomaton() {
+    }
+
+    /**
+     * Returns the automaton for the filters and the range, or null if there are no filters or they cannot be translated.
+     */
+    static CompiledAutomaton compile(String filter, String notFilter, BytesRange range) {
+        if (filter == null && notFilter == null)
+            return null;
+        try {
+            Automaton a = null;
+            if (filter != null) {
+                String re = toLuceneRegExp(filter);
+                if (re == null) return null;
+                a = new RegExp(re, RegExp.NONE).toAutomaton(MAX_DETERMINIZED_STATES);
+            }
+            if (notFilter != null) {
+                String re = toLuceneRegExp(notFilter);
+                if (re == null) return null;
+                Automaton not = new RegExp(re, RegExp.NONE).toAutomaton(MAX_DETERMINIZED_STATES);
+                a = a == null ? Operations.complement(not, MAX_DETERMINIZED_STATES) : Operations.minus(a, not, MAX_DETERMINIZED_STATES);
+            }
+            // A filter that accepts every term (like .*) becomes an ALL automaton, which needs no intersection.
+            // This must be detected before the UTF8 conversion: the converted automaton only accepts valid UTF8.
+            if (range == null && Operations.isTotal(MinimizationOperations.minimize(a, MAX_DETERMINIZED_STATES)))
+                return new CompiledAutomaton(Automata.makeAnyBinary(), null, true, MAX_DETERMINIZED_STATES, true);
+            a = new UTF32ToUTF8().convert(a);
+            if (range != null)
+                a = Operations.intersection(a, Automata.makeBinaryInterval(new BytesRef(range.low), true, new BytesRef(range.high), range.isRightInclusive()));
+            return new CompiledAutomaton(a, null, true, MAX_DETERMINIZED_STATES, true);
+        } catch (IllegalArgumentException | TooComplexToDeterminizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Translates a java regex, used with find(), into a Lucene RegExp that matches the same terms.
+     * Returns null if that is not possible (escapes like \d, groups like (?i), possessive quantifiers, anchors in the middle, etc).
+     */
+    static String toLuceneRegExp(String javaRegex) {
+        final int N = javaRegex.length();
+        StringBuilder sb = new StringBuilder(N + 32);
+        boolean anchoredStart = false, anchoredEnd = false;
+        boolean inClass = false, topLevelOr = false;
+        int depth = 0;
+        for (int i = 0; i < N; i++) {
+            char c = javaRegex.charAt(i);
+            char next = i + 1 < N ? javaRegex.charAt(i + 1) : 0;
+            switch (c) {
+            case '\\':
+                if (next == 0 || Character.isLetterOrDigit(next)) return null;
+                sb.append('\\').append(next);
+                i++;
+                continue;
+            case '"':
+                sb.append("\\\"");
+                continue;
+            }
+
+            if (inClass) {
+                if (c == '[' || (c == '&' && next == '&')) return null;
+                if (c == ']') inClass = false;
+                sb.append(c);
+                continue;
+            }
+
+            switch (c) {
+            case '^':
+                if (i != 0) return null;
+                anchoredStart = true;
+                break;
+            case '$':
+                if (i != N - 1) return null;
+                anchoredEnd = true;
+                break;
+            case '[':
+                if (next == ']') return null;
+                inClass = true;
+                sb.append(c);
+                if (next == '^') {
+                    sb.append(next);
+                    i++;
+                }
+                break;
+            case ']':
+                sb.append("\\]");
+                break;
+            case '(':
+                if (next == '?') return null;
+                depth++;
+                sb.append(c);
+                break;
+            case ')':
+                depth--;
+                sb.append(c);
+                break;
+            case '|':
+                if (depth == 0) topLevelOr = true;
+                sb.append(c);
+                break;
+            case '*':
+            case '+':
+            case '?':
+            case '}':
+                if (next == '+') return null; // possessive
+                sb.append(c);
+                break;
+            case '.':
+                sb.append(NOT_LINE_TERMINATOR);
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        if (inClass) return null;
+        if (topLevelOr && (anchoredStart || anchoredEnd)) return null;
+
+        return (anchoredStart ? "(" : ".*(") + sb + (anchoredEnd ? ")" + OPT_LINE_TERMINATOR : ").*");
+    }
+}
@@ -20,35 +20,57 @@
 package nl.bitmanager.elasticsearch.extensions.termlist;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
-import nl.bitmanager.elasticsearch.support.BytesHelper;
 import nl.bitmanager.elasticsearch.support.IntRange;
 import nl.bitmanager.elasticsearch.support.RegexReplacers;
 import nl.bitmanager.elasticsearch.transport.TransportItemBase;
 import nl.bitmanager.elasticsearch.typehandlers.TypeHandler;
 
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IntroSelector;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
-@SuppressWarnings("serial")
-public class TermList extends TreeMap<byte[], TermElt> {
-    private BytesRef rawBytes;
+/**
+ * Set of terms with their accumulated counts.
+ *
+ * The terms are stored in a BytesRefHash (pooled bytes, an int per term for the id), and the counts in a parallel int array,
+ * indexed by the id of the term. This costs about 12 bytes per term on top of the term bytes.
+ * The terms are sorted only once, when they are needed in order. After that, no terms can be added anymore.
+ *
+ * Lists of other shards are not added term by term, but kept as sorted runs (see combine()).
+ * When the terms are needed in term order, the runs are merged on the fly by a TermMerger.
+ * Only count sorts and collision detection need random access, and merge the runs into this list first.
+ */
+public class TermList {
+    private BytesRefHash terms;
+    private final boolean reverse;
+    private int[] counts;
+    private int[] sortedIds;
+    private List<TermList> runs;
+    private long countErrorBound;
     private HashMap<String, FieldInfoItem> fields;
     private String es_type;
 
     public TermList(SortType sort) {
-        super((sort.order == (SortType.SORT_REVERSE | SortType.SORT_TERM))  ? BytesHelper.bytesComparer : BytesHelper.bytesComparerRev);
+        terms = new BytesRefHash();
+        counts = new int[16];
+        reverse = sort.order == (SortType.SORT_REVERSE | SortType.SORT_TERM);
         fields = new HashMap<String, FieldInfoItem>();
     }
 
@@ -68,138 +90,326 @@ public class TermList extends TreeMap<byte[], TermElt> {
             fields.put(fld.key, fld);
     }
 
-    public TermElt add(byte[] term, boolean owned, int cnt) {
-        TermElt elt = get(term);
-        if (elt == null) {
-            if (!owned)
-                term = Arrays.copyOf(term, term.length);
-            elt = new TermElt(term, cnt);
-            put(term, elt);
-            return elt;
+    /**
+     * Upper bound of the count that a term can miss, because it was pruned on some shards (see pruneToTopCounts()).
+     */
+    public long getCountErrorBound() {
+        return countErrorBound;
+    }
+
+    public int size() {
+        return terms.size();
+    }
+
+    public long ramBytesUsed() {
+        long ret = terms.ramBytesUsed() + RamUsageEstimator.sizeOf(counts);
+        if (runs != null) {
+            for (TermList run : runs) ret += run.ramBytesUsed();
         }
-        elt.addCount(cnt);
-        return elt;
+        return ret;
     }
 
-    public TermElt add(TermElt elt) {
-        TermElt other = get(elt.term);
-        if (other == null) {
-            put(elt.term, elt);
-            return elt;
+    /** Adds the count to the term. The bytes of the term are copied */
+    public void add(BytesRef term, int cnt) {
+        if (sortedIds != null)
+            throw new IllegalStateException("Cannot add terms to a TermList after it is sorted.");
+        int id = terms.add(term);
+        if (id < 0) {
+            counts[-id - 1] += cnt;
+            return;
+        }
+        if (id >= counts.length)
+            counts = ArrayUtil.grow(counts, id + 1);
+        counts[id] = cnt;
+    }
+
+    public void add(byte[] term, int cnt) {
+        add(new BytesRef(term), cnt);
+    }
+
+    /** Returns the count of the term, or -1 if the term is not in the list */
+    public int getCount(BytesRef term) {
+        mergeRuns();
+        int id;
+        if (sortedIds == null)
+            id = terms.find(term);
+        else {
+            id = -1;
+            BytesRef scratch = new BytesRef();
+            int lo = 0, hi = sortedIds.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int rc = terms.get(sortedIds[mid], scratch).compareTo(term);
+                if (rc == 0) {
+                    id = sortedIds[mid];
+                    break;
+                }
+                if (rc < 0) lo = mid + 1; else hi = mid - 1;
+            }
         }
-        other.addCount(elt.count);
-        return other;
+        return id < 0 ? -1 : counts[id];
     }
 
+    /**
+     * Registers the terms of the other list as a sorted run, without copying them.
+     */
     public void combine(TermList other) {
         if (es_type == null)
             es_type = other.es_type;
-        for (Entry<byte[], TermElt> kvp : other.entrySet()) {
-            TermElt elt = kvp.getValue();
-            add(elt.term, true, elt.count);
+        countErrorBound += other.countErrorBound;
+        if (other.size() > 0 || other.runs != null) {
+            if (runs == null)
+                runs = new ArrayList<TermList>();
+            runs.add(other);
         }
         for (Entry<String, FieldInfoItem> kvp : other.fields.entrySet()) {
             addField(kvp.getValue());
         }
     }
 
-    public BytesRef getRawBytes() {
-        return rawBytes;
+    /** Returns a cursor over the terms of this list and its runs, in the requested term order */
+    Cursor cursor() {
+        return cursor(reverse);
     }
 
-    public void setRawBytes(BytesRef bytes) {
-        rawBytes = bytes;
+    private Cursor cursor(boolean reverse) {
+        if (runs == null)
+            return new StoreCursor(reverse);
+        List<Cursor> cursors = new ArrayList<Cursor>(runs.size() + 1);
+        if (size() > 0)
+            cursors.add(new StoreCursor(reverse));
+        for (TermList run : runs)
+            cursors.add(run.cursor(reverse));
+        return new TermMerger(cursors, reverse);
     }
 
-    public int getRawBytesLength() {
-        return rawBytes == null ? 0 : rawBytes.length;
+    /** Merges the runs into this list. The merged terms are added in ascending order, so they don't need sorting */
+    private void mergeRuns() {
+        if (runs == null)
+            return;
+        Cursor merged = cursor(false);
+        terms = new BytesRefHash();
+        counts = new int[16];
+        sortedIds = null;
+        runs = null;
+        while (merged.next())
+            add(merged.term(), merged.count());
+        sortedIds = identity(size());
     }
 
-    public void saveToStream(StreamOutput out) throws IOException {
-        TransportItemBase.writeStr(out, es_type);
-        out.writeInt(fields.size());
-        for (java.util.Map.Entry<String, FieldInfoItem> kvp : fields.entrySet()) {
-            kvp.getValue().writeTo(out);
-        }
+    void addCountErrorBound(long bound) {
+        countErrorBound += bound;
+    }
 
-        out.writeInt(size());
-        for (java.util.Map.Entry<byte[], TermElt> kvp : entrySet()) {
-            kvp.getValue().saveToStream(out);
+    /** Returns the exported terms (with count 0), to be used as candidates in the second round of an exact top-K request */
+    TermList createCandidates(TermlistTransportItem request) {
+        TermList ret = new TermList(request.getSortType());
+        for (Iterator<TermElt> it = exportedTerms(request, getLimits(request)); it.hasNext();) {
+            ret.add(it.next().term, 0);
         }
-        System.out.println("TermList::saveToStream saved " + size() + " items");
-        out.writeBytesRef(rawBytes);
+        ret.sortedIds(); // Sort now: the candidates are shared by the local shards
+        return ret;
     }
 
-    public void loadFromStream(StreamInput in) throws IOException {
-        es_type = TransportItemBase.readStr(in);
-        int n = in.readInt();
-        for (int i = 0; i < n; i++) {
-            addField(new FieldInfoItem(in));
-        }
+    /**
+     * Keeps only the n terms with the highest counts. The count of the n-th term is added to the error bound:
+     * a pruned term can have at most that count in this list.
+     */
+    public void pruneToTopCounts(int n) {
+        mergeRuns();
+        final int N = size();
+        if (N <= n)
+            return;
+        int[] ids = identity(N);
+        new CountSelector(ids).select(0, N, n - 1);
+        countErrorBound += counts[ids[n - 1]];
+
+        FixedBitSet keep = new FixedBitSet(N);
+        for (int i = 0; i < n; i++)
+            keep.set(ids[i]);
+        retain(keep, n);
+    }
+
+    /**
+     * Keeps only the first n terms, in ascending term order. Used for paging: every shard returns its first n terms
+     * after the cursor, so the first n terms of the combined list are complete, with exact counts.
+     */
+    public void pruneToFirstTerms(int n) {
+        mergeRuns();
+        final int N = size();
+        if (N <= n)
+            return;
+        int[] order = sortedIds();
+        FixedBitSet keep = new FixedBitSet(N);
+        for (int i = 0; i < n; i++)
+            keep.set(order[i]);
+        retain(keep, n);
+    }
 
-        n = in.readInt();
-        for (int i = 0; i < n; i++) {
-            add(new TermElt(in));
+    /** Rebuilds the list with only the n terms in keep */
+    private void retain(FixedBitSet keep, int n) {
+        BytesRefHash oldTerms = terms;
+        int[] oldCounts = counts;
+        int[] order = sortedIds();
+        terms = new BytesRefHash();
+        counts = new int[n];
+        sortedIds = null;
+        BytesRef scratch = new BytesRef();
+        for (int id : order) {
+            if (keep.get(id))
+                add(oldTerms.get(id, scratch), oldCounts[id]);
         }
-        System.out.println("TermList::loadFromStream loaded " + size() + " items, n=" + n);
-        rawBytes = in.readBytesRef();
+        sortedIds = identity(size());
     }
 
-    private List<TermElt> createSortedTerms(SortType sort, TermListLimits limits) {
-        List<TermElt> arr = new ArrayList<TermElt>(size());
-        IntRange range = limits.countRange;
-        for (Entry<byte[], TermElt> kvp : entrySet()) {
-            TermElt te = kvp.getValue();
-            if (range==null || range.isInRange(te.count))
-                arr.add(te);
+    /** Returns the highest term of the list, or null if the list is empty */
+    public byte[] lastTerm() {
+        mergeRuns();
+        final int N = size();
+        if (N == 0)
+            return null;
+        return BytesRef.deepCopyOf(terms.get(sortedIds()[N - 1], new BytesRef())).bytes;
+    }
+
+    private static int[] identity(int n) {
+        int[] ret = new int[n];
+        for (int i = 0; i < n; i++) ret[i] = i;
+        return ret;
+    }
+
+    /** Returns the ids of the terms in ascending term order. Sorts the terms the first time it is called */
+    private int[] sortedIds() {
+        if (sortedIds == null) {
+            int[] ids = terms.sort();
+            sortedIds = ids.length == size() ? ids : ArrayUtil.copyOfSubArray(ids, 0, size());
         }
+        return sortedIds;
+    }
+
+    /** Returns the ids of the terms in the order that was requested by a term sort */
+    private int idAt(int i) {
+        int[] ids = sortedIds();
+        return reverse ? ids[ids.length - 1 - i] : ids[i];
+    }
+
+    private TermElt createTermElt(int id) {
+        BytesRef term = terms.get(id, new BytesRef());
+        return new TermElt(BytesRef.deepCopyOf(term).bytes, counts[id]);
+    }
 
-        Collections.sort(arr, (sort.order & SortType.SORT_REVERSE) == 0 ? new AscCountComparator() : new DescCountComparator());
-        return arr;
+    /**
+     * Iterates over terms in term order. The returned term is only valid until the next call to next()
+     */
+    interface Cursor {
+        boolean next();
+        BytesRef term();
+        int count();
     }
 
-    private int getMaxCount() {
-        int cnt = 0;
-        for (Entry<byte[], TermElt> kvp : entrySet()) {
-            int tmp = kvp.getValue().count;
-            if (tmp > cnt)
-                cnt = tmp;
+    /** Iterates the own terms of this list. Captures the store, so that the list can be merged while iterating */
+    private class StoreCursor implements Cursor {
+        private final BytesRefHash terms;
+        private final int[] counts;
+        private final int[] ids;
+        private final boolean reverse;
+        private final BytesRef scratch;
+        private int i, id;
+
+        StoreCursor(boolean reverse) {
+            this.terms = TermList.this.terms;
+            this.counts = TermList.this.counts;
+            this.ids = sortedIds();
+            this.reverse = reverse;
+            this.scratch = new BytesRef();
+            this.i = -1;
         }
-        return cnt;
+
+        @Override
+        public boolean next() {
+            if (++i >= ids.length)
+                return false;
+            id = reverse ? ids[ids.length - 1 - i] : ids[i];
+            terms.get(id, scratch);
+            return true;
+        }
+
+        @Override
+        public BytesRef term() {
+            return scratch;
+        }
+
+        @Override
+        public int count() {
+            return counts[id];
+        }
+    }
+
+    /** Saves the terms in ascending order, so that the receiver can use them as a sorted run */
+    public void saveToStream(StreamOutput out) throws IOException {
+        TransportItemBase.writeStr(out, es_type);
+        FieldInfoItem.writeItems(out, fields.values());
+        out.writeVLong(countErrorBound);
+        // Runs of other lists are merged while encoding, without materializing them first
+        TermListCodec.write(out, cursor(false));
+    }
+
+    public void loadFromStream(StreamInput in) throws IOException {
+        es_type = TransportItemBase.readStr(in);
+        for (FieldInfoItem fld : FieldInfoItem.readItems(in))
+            addField(fld);
+
+        countErrorBound = in.readVLong();
+        int n = TermListCodec.read(in, this);
+        // The terms were saved in ascending order, so the ids are in term order
+        if (size() == n)
+            sortedIds = identity(n);
     }
 
-    private int getFilteredCount(IntRange range) {
-        if (range==null) return size();
-        int cnt = 0;
-        for (Entry<byte[], TermElt> kvp : entrySet()) {
-            if (range.isInRange(kvp.getValue().count))
-                cnt++;
+    /** Returns the ids of the terms that are in the count range, sorted on count (and term) */
+    private int[] createSortedTerms(SortType sort, TermListLimits limits) {
+        mergeRuns();
+        IntRange range = limits.countRange;
+        final int N = size();
+        int[] ids = new int[range == null ? N : limits.filteredItemCount];
+        int n = 0;
+        for (int id = 0; id < N; id++) {
+            if (range == null || range.isInRange(counts[id]))
+                ids[n++] = id;
         }
-        return cnt;
+        new CountSorter(ids, (sort.order & SortType.SORT_REVERSE) != 0).sort(0, n);
+        return ids;
     }
 
     public Collisions buildCollisions(TermlistTransportItem request) {
-        Collisions list = new Collisions();
+        return buildCollisions(request.getReplacers(), request.getCollisionsOnly());
+    }
 
-        RegexReplacers replacers = request.getReplacers();
+    /**
+     * Returns the terms that are changed by the replacers, in the requested term order, together with the term
+     * they are replaced by. If collisionsOnly is set, only terms that are replaced by an existing term are returned.
+     */
+    Collisions buildCollisions(RegexReplacers replacers, boolean collisionsOnly) {
+        Collisions list = new Collisions();
         if (replacers == null)
             return list;
 
-        boolean collisionsOnly = request.getCollisionsOnly();
-        for (Entry<byte[], TermElt> kvp : entrySet()) {
-            TermElt term = kvp.getValue();
+        mergeRuns();
+        final int N = size();
+        for (int i = 0; i < N; i++) {
+            TermElt term = createTermElt(idAt(i));
             String replaced = replacers.replace(term.termAsString());
             // System.out.println(String.format("REPL '%s'-->'%s'", term.term,
             // replaced));
             if (replaced == null)
                 continue;
 
-            TermElt collision = this.get(replaced);
-            if (collision == null) {
+            TermElt collision = new TermElt(replaced);
+            int cnt = getCount(new BytesRef(collision.term));
+            if (cnt < 0) {
                 if (collisionsOnly)
                     continue;
-                collision = new TermElt(replaced);
-            }
+            } else
+                collision.count = cnt;
 
             list.add(new CollisionElt(term, collision));
         }
@@ -278,75 +488,158 @@ public class TermList extends TreeMap<byte[], TermElt> {
     };
 
     public void exportToJson(XContentBuilder builder, TermlistTransportItem request, TermListLimits limits, TypeHandler th) throws IOException {
-        SortType sort = request.getSortType();
-        int resultLimit = request.getResultLimit();
+        for (Iterator<TermElt> it = exportedTerms(request, limits); it.hasNext();) {
+            it.next().exportToJson(builder, th);
+        }
+    }
 
-        IntRange range = limits.countRange;
-        if ((sort.order & SortType.SORT_TERM) != 0) {
-            for (Entry<byte[], TermElt> kvp : entrySet()) {
-                TermElt v = kvp.getValue();
-                if (range != null && !range.isInRange(v.count))
-                    continue;
+    /**
+     * Writes the terms that pass the limits as lines of text
+     */
+    public void exportTerms(TermWriter writer, TermlistTransportItem request, TermListLimits limits) throws IOException {
+        for (Iterator<TermElt> it = exportedTerms(request, limits); it.hasNext();) {
+            TermElt elt = it.next();
+            writer.write(elt.term, elt.count);
+        }
+        writer.finish();
+    }
 
-                v.exportToJson(builder, th);
-                if (resultLimit > 0 && --resultLimit == 0)
-                    break;
+    /**
+     * Returns the terms to export, in the requested order, with the count range and the result_limit applied.
+     * If the list is sorted on term, the terms are not copied.
+     */
+    private Iterator<TermElt> exportedTerms(TermlistTransportItem request, TermListLimits limits) {
+        final SortType sort = request.getSortType();
+        final int resultLimit = request.getResultLimit();
+        final IntRange range = limits.countRange;
+
+        if ((sort.order & SortType.SORT_TERM) == 0) {
+            final int[] ids = createSortedTerms(sort, limits);
+            final int N = (resultLimit > 0 && resultLimit < limits.filteredItemCount) ? resultLimit : limits.filteredItemCount;
+            return new Iterator<TermElt>() {
+                private int i;
+
+                @Override
+                public boolean hasNext() {
+                    return i < N;
+                }
+
+                @Override
+                public TermElt next() {
+                    if (i >= N) throw new NoSuchElementException();
+                    return createTermElt(ids[i++]);
+                }
+            };
+        }
+
+        final Cursor cursor = cursor();
+        return new Iterator<TermElt>() {
+            private int todo = resultLimit > 0 ? resultLimit : Integer.MAX_VALUE;
+            private TermElt next = advance();
+
+            private TermElt advance() {
+                if (todo <= 0)
+                    return null;
+                while (cursor.next()) {
+                    if (range == null || range.isInRange(cursor.count())) {
+                        --todo;
+                        return new TermElt(BytesRef.deepCopyOf(cursor.term()).bytes, cursor.count());
+                    }
+                }
+                return null;
             }
-            return;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public TermElt next() {
+                if (next == null) throw new NoSuchElementException();
+                TermElt ret = next;
+                next = advance();
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Sorts ids on their count (ascending or descending), and on the term for equal counts
+     */
+    private class CountSorter extends IntroSorter {
+        private final int[] ids;
+        private final boolean descending;
+        private final BytesRef scratchA, scratchB;
+        private int pivot;
+
+        CountSorter(int[] ids, boolean descending) {
+            this.ids = ids;
+            this.descending = descending;
+            scratchA = new BytesRef();
+            scratchB = new BytesRef();
         }
 
-        List<TermElt> arr = createSortedTerms(sort, limits);
-        int N = arr.size();
-        if (resultLimit > 0 && resultLimit < N) N = resultLimit;
-        for (int i = 0; i < N; i++) {
-            arr.get(i).exportToJson(builder, th);
+        @Override
+        protected int compare(int i, int j) {
+            return compareIds(ids[i], ids[j]);
         }
-    }
 
-    public void writeRawBytes(OutputStream out) throws IOException {
-        if (rawBytes == null)
-            return;
-        out.write(rawBytes.bytes, 0, rawBytes.length);
-    }
+        @Override
+        protected void swap(int i, int j) {
+            int tmp = ids[i];
+            ids[i] = ids[j];
+            ids[j] = tmp;
+        }
 
-    public BytesRef exportToText(SortType sort) throws IOException {
-        return rawBytes != null ? rawBytes : new BytesRef(BytesRef.EMPTY_BYTES);
-        // StringBuilder bldr = new StringBuilder (16*1024);
-        // if (sort==SortType.sortString) {
-        // for (Entry<String, TermElt> kvp: entrySet()) {
-        // kvp.getValue().exportToText(bldr);
-        // }
-        // return new BytesRef (bldr);
-        // }
-        //
-        // TermElt[] arr = createSortedTerms (sort);
-        // for (int i=0; i<arr.length; i++) {
-        // arr[i].exportToText(bldr);
-        // }
-        // return new BytesRef (bldr);
+        @Override
+        protected void setPivot(int i) {
+            pivot = ids[i];
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+            return compareIds(pivot, ids[j]);
+        }
+
+        private int compareIds(int a, int b) {
+            int rc = descending ? Integer.compare(counts[b], counts[a]) : Integer.compare(counts[a], counts[b]);
+            return rc != 0 ? rc : terms.get(a, scratchA).compareTo(terms.get(b, scratchB));
+        }
     }
 
-    private static class AscCountComparator implements Comparator<TermElt> {
+    /** Selects the ids with the highest counts */
+    private class CountSelector extends IntroSelector {
+        private final CountSorter sorter;
+
+        CountSelector(int[] ids) {
+            sorter = new CountSorter(ids, true);
+        }
 
         @Override
-        public int compare(TermElt arg0, TermElt arg1) {
-            int rc = arg0.count - arg1.count;
-            return rc != 0 ? rc : BytesHelper.bytesComparer.compare(arg0.term, arg1.term);
+        protected int compare(int i, int j) {
+            return sorter.compare(i, j);
         }
-    }
 
-    private static class DescCountComparator implements Comparator<TermElt> {
+        @Override
+        protected void swap(int i, int j) {
+            sorter.swap(i, j);
+        }
+
+        @Override
+        protected void setPivot(int i) {
+            sorter.setPivot(i);
+        }
 
         @Override
-        public int compare(TermElt arg0, TermElt arg1) {
-            int rc = arg1.count - arg0.count;
-            return rc != 0 ? rc : BytesHelper.bytesComparer.compare(arg0.term, arg1.term);
+        protected int comparePivot(int j) {
+            return sorter.comparePivot(j);
         }
     }
 
     @Override
     public String toString() {
-        return String.format("Termlist with %d items, rawBytes=%d bytes.", size(), getRawBytesLength());
+        return String.format("Termlist with %d items, %d runs, %d bytes.", size(), runs == null ? 0 : runs.size(), ramBytesUsed());
     }
 
     public TermListLimits getLimits(TermlistTransportItem request) {
@@ -358,12 +651,25 @@ public class TermList extends TreeMap<byte[], TermElt> {
         public final IntRange countRange;//, lengthRange;
         public final int itemCount;
         public final int filteredItemCount;
+        public final long countErrorUpperBound;
+        public final boolean exactCounts;
 
+        /** Computes the limits in 1 pass over the (merged) terms */
         public TermListLimits(TermList list, TermlistTransportItem request) {
-            maxOccCount = list.getMaxCount();
             countRange = request.getCountRange();
-            filteredItemCount = list.getFilteredCount(countRange);
-            itemCount = list.size();
+            int max = 0, items = 0, filtered = 0;
+            Cursor cursor = list.cursor(false);
+            while (cursor.next()) {
+                int cnt = cursor.count();
+                if (cnt > max) max = cnt;
+                items++;
+                if (countRange == null || countRange.isInRange(cnt)) filtered++;
+            }
+            maxOccCount = max;
+            itemCount = items;
+            filteredItemCount = filtered;
+            countErrorUpperBound = list.countErrorBound;
+            exactCounts = request.isCandidateRound();
         }
 
         public void exportToJson(XContentBuilder builder) throws IOException {
@@ -371,6 +677,10 @@ public class TermList extends TreeMap<byte[], TermElt> {
             builder.field("maxOccCount", maxOccCount);
             builder.field("itemCount", itemCount);
             builder.field("filteredItemCount", filteredItemCount);
+            if (countErrorUpperBound > 0 || exactCounts) {
+                builder.field("countErrorUpperBound", countErrorUpperBound);
+                builder.field("exactCounts", exactCounts);
+            }
         }
     }
 
@@ -0,0 +1,134 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.FutureArrays;
+import org.apache.lucene.util.packed.BlockPackedReaderIterator;
+import org.apache.lucene.util.packed.BlockPackedWriter;
+import org.apache.lucene.util.packed.PackedInts;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * Transport encoding of the terms and counts of a TermList.
+ *
+ * The terms are encoded in ascending order, so consecutive terms often share a prefix:
+ * each term is written as the length of the prefix shared with the previous term, followed by the rest of the bytes.
+ * The counts precede the terms as a block packed stream (128 counts per block, bit packed relative to the block minimum).
+ * If the encoded block is larger than COMPRESS_THRESHOLD, it is compressed with LZ4.
+ */
+final class TermListCodec {
+    static final int COMPRESS_THRESHOLD = 16 * 1024;
+    private static final int BLOCK_SIZE = 128;
+
+    private TermListCodec() {
+    }
+
+    /** Writes the terms and counts of the cursor, which must return the terms in ascending order */
+    static void write(StreamOutput out, TermList.Cursor cursor) throws IOException {
+        ByteBuffersDataOutput suffixes = new ByteBuffersDataOutput();
+        int[] counts = new int[64];
+        BytesRefBuilder prev = new BytesRefBuilder();
+        int n = 0;
+        while (cursor.next()) {
+            BytesRef term = cursor.term();
+            int prefix = FutureArrays.mismatch(prev.bytes(), 0, prev.length(), term.bytes, term.offset, term.offset + term.length);
+            if (prefix < 0) prefix = term.length;
+            suffixes.writeVInt(prefix);
+            suffixes.writeVInt(term.length - prefix);
+            suffixes.writeBytes(term.bytes, term.offset + prefix, term.length - prefix);
+            prev.copyBytes(term);
+
+            if (n == counts.length) counts = ArrayUtil.grow(counts, n + 1);
+            counts[n++] = cursor.count();
+        }
+
+        out.writeVInt(n);
+        if (n == 0)
+            return;
+
+        ByteBuffersDataOutput block = new ByteBuffersDataOutput(suffixes.size() + n);
+        BlockPackedWriter countWriter = new BlockPackedWriter(block, BLOCK_SIZE);
+        for (int i = 0; i < n; i++)
+            countWriter.add(counts[i]);
+        countWriter.finish();
+        suffixes.copyTo(block);
+
+        byte[] raw = block.toArrayCopy();
+        out.writeVInt(raw.length);
+        boolean compress = raw.length > COMPRESS_THRESHOLD;
+        out.writeBoolean(compress);
+        if (!compress) {
+            out.writeBytes(raw);
+            return;
+        }
+        ByteBuffersDataOutput compressed = new ByteBuffersDataOutput();
+        CompressionMode.FAST.newCompressor().compress(raw, 0, raw.length, compressed);
+        out.writeVInt((int) compressed.size());
+        out.writeBytes(compressed.toArrayCopy());
+    }
+
+    /** Reads the terms and counts written by write(), and adds them to the termlist in ascending order. Returns the number of terms read */
+    static int read(StreamInput in, TermList termlist) throws IOException {
+        final int n = in.readVInt();
+        if (n == 0)
+            return 0;
+
+        final int rawLength = in.readVInt();
+        DataInput block;
+        if (in.readBoolean()) {
+            byte[] compressed = new byte[in.readVInt()];
+            in.readBytes(compressed, 0, compressed.length);
+            BytesRef raw = new BytesRef();
+            CompressionMode.FAST.newDecompressor().decompress(new ByteArrayDataInput(compressed), rawLength, 0, rawLength, raw);
+            block = new ByteArrayDataInput(raw.bytes, raw.offset, raw.length);
+        } else {
+            byte[] raw = new byte[rawLength];
+            in.readBytes(raw, 0, rawLength);
+            block = new ByteArrayDataInput(raw);
+        }
+
+        int[] counts = new int[n];
+        BlockPackedReaderIterator countReader = new BlockPackedReaderIterator(block, PackedInts.VERSION_CURRENT, BLOCK_SIZE, n);
+        for (int i = 0; i < n; i++)
+            counts[i] = (int) countReader.next();
+
+        BytesRefBuilder term = new BytesRefBuilder();
+        for (int i = 0; i < n; i++) {
+            int prefix = block.readVInt();
+            int suffix = block.readVInt();
+            term.setLength(prefix);
+            term.grow(prefix + suffix);
+            block.readBytes(term.bytes(), prefix, suffix);
+            term.setLength(prefix + suffix);
+            termlist.add(term.get(), counts[i]);
+        }
+        return n;
+    }
+}
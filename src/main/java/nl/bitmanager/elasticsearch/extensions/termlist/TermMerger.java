@@ -0,0 +1,84 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * K-way merge of sorted term cursors. Equal terms are returned once, with their counts summed.
+ * Each term costs O(log k), without allocating anything per term.
+ */
+final class TermMerger implements TermList.Cursor {
+    private final PriorityQueue<TermList.Cursor> queue;
+    private final BytesRefBuilder term;
+    private int count;
+
+    TermMerger(List<TermList.Cursor> cursors, final boolean reverse) {
+        term = new BytesRefBuilder();
+        queue = new PriorityQueue<TermList.Cursor>(Math.max(1, cursors.size())) {
+            @Override
+            protected boolean lessThan(TermList.Cursor a, TermList.Cursor b) {
+                int rc = a.term().compareTo(b.term());
+                return reverse ? rc > 0 : rc < 0;
+            }
+        };
+        for (TermList.Cursor c : cursors) {
+            if (c.next())
+                queue.add(c);
+        }
+    }
+
+    @Override
+    public boolean next() {
+        if (queue.size() == 0)
+            return false;
+        TermList.Cursor top = queue.top();
+        term.copyBytes(top.term());
+        count = 0;
+        while (true) {
+            count += top.count();
+            if (top.next())
+                top = queue.updateTop();
+            else {
+                queue.pop();
+                if (queue.size() == 0)
+                    break;
+                top = queue.top();
+            }
+            if (!top.term().bytesEquals(term.get()))
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public BytesRef term() {
+        return term.get();
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+}
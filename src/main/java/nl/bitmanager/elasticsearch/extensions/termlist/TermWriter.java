@@ -0,0 +1,148 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import nl.bitmanager.elasticsearch.typehandlers.TypeHandler;
+
+/**
+ * Writes terms with their counts as lines of text (output=ndjson or output=csv).
+ * Every term is written as soon as it is supplied, without building an intermediate document.
+ * The underlying stream is flushed by finish(), but never closed: it is owned by the rest channel.
+ */
+public abstract class TermWriter {
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String FORMAT_CSV = "csv";
+
+    protected final Writer out;
+    protected final TypeHandler th;
+
+    protected TermWriter(OutputStream out, TypeHandler th) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16 * 1024);
+        this.th = th;
+    }
+
+    /** Returns the normalized format, or null if the output is json. 'text' is accepted as an alias of csv */
+    public static String checkFormat(String format) {
+        if (format == null || format.length() == 0 || "json".equalsIgnoreCase(format))
+            return null;
+        if (FORMAT_NDJSON.equalsIgnoreCase(format))
+            return FORMAT_NDJSON;
+        if (FORMAT_CSV.equalsIgnoreCase(format) || "text".equalsIgnoreCase(format))
+            return FORMAT_CSV;
+        throw new IllegalArgumentException("Invalid output [" + format + "]. Possible values are <json|ndjson|csv>");
+    }
+
+    public static TermWriter create(String format, OutputStream out, TypeHandler th) throws IOException {
+        TermWriter ret = FORMAT_NDJSON.equals(format) ? new NdJsonWriter(out, th) : new CsvWriter(out, th);
+        ret.start();
+        return ret;
+    }
+
+    public abstract String contentType();
+
+    protected void start() throws IOException {
+    }
+
+    public abstract void write(byte[] term, int count) throws IOException;
+
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    static class NdJsonWriter extends TermWriter {
+        NdJsonWriter(OutputStream out, TypeHandler th) {
+            super(out, th);
+        }
+
+        @Override
+        public String contentType() {
+            return "application/x-ndjson; charset=UTF-8";
+        }
+
+        @Override
+        public void write(byte[] term, int count) throws IOException {
+            out.write("{\"t\":\"");
+            String s = th.toString(term);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        out.write(String.format("\\u%04x", (int) c));
+                    else
+                        out.write(c);
+                }
+            }
+            out.write("\",\"c\":");
+            out.write(Integer.toString(count));
+            out.write("}\n");
+        }
+    }
+
+    static class CsvWriter extends TermWriter {
+        CsvWriter(OutputStream out, TypeHandler th) {
+            super(out, th);
+        }
+
+        @Override
+        public String contentType() {
+            return "text/csv; charset=UTF-8";
+        }
+
+        @Override
+        protected void start() throws IOException {
+            out.write("term,count\r\n");
+        }
+
+        @Override
+        public void write(byte[] term, int count) throws IOException {
+            String s = th.toString(term);
+            boolean quote = false;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                    quote = true;
+                    break;
+                }
+            }
+            if (quote) {
+                out.write('"');
+                out.write(s.replace("\"", "\"\""));
+                out.write('"');
+            } else
+                out.write(s);
+            out.write(',');
+            out.write(Integer.toString(count));
+            out.write("\r\n");
+        }
+    }
+}
@@ -22,11 +22,19 @@ package nl.bitmanager.elasticsearch.extensions.termlist;
 import static org.elasticsearch.rest.RestRequest.Method.GET;
 
 import java.io.IOException;
+import java.net.URLEncoder;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.node.NodeClient;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.action.RestResponseListener;
 import org.elasticsearch.rest.action.RestToXContentListener;
 
 import nl.bitmanager.elasticsearch.extensions.RestControllerWrapper;
@@ -48,9 +56,11 @@ public class TermlistRestAction extends BaseRestHandler {
     public RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) throws IOException {
         TermlistTransportItem item = new TermlistTransportItem(ActionDefinition.INSTANCE, request);
         ShardBroadcastRequest broadcastRequest = new ShardBroadcastRequest(ActionDefinition.INSTANCE, item, request.param("index"));
+        final String index = request.param("index");
         try {
             return channel -> client.admin().indices().execute(ActionDefinition.INSTANCE.actionType, broadcastRequest,
-                    new RestToXContentListener<ShardBroadcastResponse>(channel));
+                    new CandidateRoundListener(client, index, item.isTextRequest() ? new TextListener(channel)
+                            : new RestToXContentListener<ShardBroadcastResponse>(channel)));
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
@@ -58,6 +68,63 @@ public class TermlistRestAction extends BaseRestHandler {
     }
 
 
+    /**
+     * Runs the second round of an exact top-K request if terms were pruned in the first round (see TermlistTransportItem.needsCandidateRound()).
+     * Otherwise the first response is passed through.
+     */
+    private static class CandidateRoundListener implements ActionListener<ShardBroadcastResponse> {
+        private final NodeClient client;
+        private final String index;
+        private final ActionListener<ShardBroadcastResponse> next;
+
+        CandidateRoundListener(NodeClient client, String index, ActionListener<ShardBroadcastResponse> next) {
+            this.client = client;
+            this.index = index;
+            this.next = next;
+        }
+
+        @Override
+        public void onResponse(ShardBroadcastResponse response) {
+            TermlistTransportItem item = (TermlistTransportItem) response.getTransportItem();
+            if (!item.needsCandidateRound()) {
+                next.onResponse(response);
+                return;
+            }
+            ShardBroadcastRequest req = new ShardBroadcastRequest(ActionDefinition.INSTANCE, item.createCandidateRequest(), index);
+            client.admin().indices().execute(ActionDefinition.INSTANCE.actionType, req, next);
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            next.onFailure(e);
+        }
+    }
+
+    /**
+     * Writes the terms as ndjson or csv directly into the (paged and recycled) output buffer of the channel.
+     * Failed shards are reported via the X-Failed-Shards header, since there is no header section in the body.
+     */
+    private static class TextListener extends RestResponseListener<ShardBroadcastResponse> {
+        TextListener(RestChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        public RestResponse buildResponse(ShardBroadcastResponse response) throws Exception {
+            TermlistTransportItem item = (TermlistTransportItem) response.getTransportItem();
+            String nextSearchAfter = item.getNextSearchAfter();
+            BytesStreamOutput out = channel.bytesOutput();
+            TermWriter writer = item.exportTerms(out);
+            RestResponse ret = new BytesRestResponse(RestStatus.OK, writer.contentType(), out.bytes());
+            if (response.getFailedShards() > 0)
+                ret.addHeader("X-Failed-Shards", Integer.toString(response.getFailedShards()));
+            // Url encoded, so that it can be passed as is in the url of the next request
+            if (nextSearchAfter != null)
+                ret.addHeader("X-Search-After", URLEncoder.encode(nextSearchAfter, "UTF-8"));
+            return ret;
+        }
+    }
+
     @Override
     public String getName() {
         return ActionDefinition.INSTANCE.name;
@@ -20,25 +20,25 @@
 package nl.bitmanager.elasticsearch.extensions.termlist;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfos;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexReaderContext;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PointValues;
-import org.apache.lucene.index.PointValues.IntersectVisitor;
-import org.apache.lucene.index.PointValues.Relation;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TermsEnum.SeekStatus;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -50,8 +50,10 @@ import org.elasticsearch.rest.RestRequest;
 import nl.bitmanager.elasticsearch.support.BytesRange;
 import nl.bitmanager.elasticsearch.support.IntRange;
 import nl.bitmanager.elasticsearch.support.RegexReplacers;
+import nl.bitmanager.elasticsearch.support.SegmentExecutor;
 import nl.bitmanager.elasticsearch.transport.ActionDefinition;
 import nl.bitmanager.elasticsearch.transport.TransportItemBase;
+import nl.bitmanager.elasticsearch.typehandlers.StringHandler;
 import nl.bitmanager.elasticsearch.typehandlers.TypeHandler;
 
 public class TermlistTransportItem extends TransportItemBase {
@@ -65,19 +67,29 @@ public class TermlistTransportItem extends TransportItemBase {
     private static final String P_REPL_EXPR = "repl_expr";
     private static final String P_COLLISIONS_ONLY = "collisions_only";
     private static final String P_RANGE = "range";
+    private static final String P_SHARD_SIZE = "shard_size";
+    private static final String P_EXACT = "exact";
+    private static final String P_PARALLELISM = "parallelism";
+    private static final String P_SEARCH_AFTER = "search_after";
+    private static final String P_SIZE = "size";
 
     private HashSet<String> fieldsMap;
     private RegexReplacers replacers;
 
-    private String fields, filterExpr, notFilterExpr, outputType, term;
+    private String fields, filterExpr, notFilterExpr, outputType, outputFormat, term;
     private String replExpr;
     private String range;
+    private String searchAfter;
     private TermList termlist;
     private String count_range, length_range;;
     private int resultLimit;
+    private int shardSize;
+    private int parallelism;
+    private int size;
+    private boolean exact;
+    private TermList candidates;
     private int mode;
     private SortType sortType;
-    private boolean requestRawText;
     private boolean collisionsOnly;
 
     public TermlistTransportItem(ActionDefinition definition) {
@@ -95,13 +107,18 @@ public class TermlistTransportItem extends TransportItemBase {
         notFilterExpr = nullIfEmpty(request.param(P_NOT_FILTER));
         replExpr = nullIfEmpty(request.param(P_REPL_EXPR));
         outputType = request.param("output");
-        requestRawText = "text".equalsIgnoreCase(outputType);
+        outputFormat = TermWriter.checkFormat(outputType);
         mode = request.paramAsInt("mode", 0);
 
         count_range = nullIfEmpty(request.param(P_COUNT));
         length_range = nullIfEmpty(request.param(P_LENGTH));
         resultLimit = request.paramAsInt(P_RESULT_LIMIT, 20000);
         collisionsOnly = request.paramAsBoolean(P_COLLISIONS_ONLY, true);
+        shardSize = request.paramAsInt(P_SHARD_SIZE, resultLimit > 0 ? resultLimit + resultLimit / 2 + 10 : 0);
+        exact = request.paramAsBoolean(P_EXACT, false);
+        parallelism = request.paramAsInt(P_PARALLELISM, -1);
+        searchAfter = nullIfEmpty(request.param(P_SEARCH_AFTER));
+        size = request.paramAsInt(P_SIZE, 0);
 
         this.sortType = new SortType (request.param(P_SORT));
         termlist = new TermList (sortType);
@@ -109,6 +126,17 @@ public class TermlistTransportItem extends TransportItemBase {
         //Check the format
         new IntRange (count_range);
         new IntRange (length_range);
+        if (outputFormat != null && replExpr != null)
+            throw new IllegalArgumentException("output=" + outputType + " cannot be combined with " + P_REPL_EXPR);
+        if (searchAfter != null && size <= 0)
+            throw new IllegalArgumentException(P_SEARCH_AFTER + " needs a " + P_SIZE);
+        if (size > 0) {
+            if (sortType.order != SortType.SORT_TERM)
+                throw new IllegalArgumentException(P_SIZE + " can only be used with sort=term");
+            if (replExpr != null || term != null)
+                throw new IllegalArgumentException(P_SIZE + " cannot be combined with " + P_REPL_EXPR + " or term");
+            resultLimit = 0; // The page size limits the result
+        }
 
         initCachedObjects();
     }
@@ -121,13 +149,19 @@ public class TermlistTransportItem extends TransportItemBase {
         notFilterExpr = other.notFilterExpr;
         replExpr = other.replExpr;
         outputType = other.outputType;
-        requestRawText = other.requestRawText;
+        outputFormat = other.outputFormat;
         mode = other.mode;
 
         count_range = other.count_range;
         length_range = other.length_range;
         resultLimit = other.resultLimit;
         collisionsOnly = other.collisionsOnly;
+        shardSize = other.shardSize;
+        exact = other.exact;
+        parallelism = other.parallelism;
+        searchAfter = other.searchAfter;
+        size = other.size;
+        candidates = other.candidates;
         sortType = other.sortType;
         termlist = new TermList (sortType);
         range = other.range;
@@ -141,6 +175,7 @@ public class TermlistTransportItem extends TransportItemBase {
         filterExpr = readStr(in);
         notFilterExpr = readStr(in);
         outputType = readStr(in);
+        outputFormat = TermWriter.checkFormat(outputType);
         sortType = new SortType(in.readVInt());
         term = readStr(in);
         mode = in.readVInt();
@@ -149,8 +184,17 @@ public class TermlistTransportItem extends TransportItemBase {
         length_range = readStr(in);
         replExpr = readStr(in);
         collisionsOnly = in.readBoolean();
+        shardSize = in.readVInt();
+        exact = in.readBoolean();
+        parallelism = in.readInt();
+        searchAfter = readStr(in);
+        size = in.readVInt();
         termlist = new TermList (sortType);
         termlist.loadFromStream(in);
+        if (in.readBoolean()) {
+            candidates = new TermList (sortType);
+            candidates.loadFromStream(in);
+        }
         initCachedObjects();
     }
 
@@ -170,12 +214,20 @@ public class TermlistTransportItem extends TransportItemBase {
         writeStr(out, length_range);
         writeStr(out, replExpr);
         out.writeBoolean(collisionsOnly);
+        out.writeVInt(shardSize);
+        out.writeBoolean(exact);
+        out.writeInt(parallelism);
+        writeStr(out, searchAfter);
+        out.writeVInt(size);
         termlist.saveToStream(out);
+        out.writeBoolean(candidates != null);
+        if (candidates != null)
+            candidates.saveToStream(out);
     }
 
 
     public boolean isTextRequest() {
-        return requestRawText;
+        return outputFormat != null;
     }
 
     public boolean isFieldRequested(String fld) {
@@ -221,6 +273,54 @@ public class TermlistTransportItem extends TransportItemBase {
         return resultLimit;
     }
 
+    /**
+     * Top-K mode: the list is sorted on descending count without a count range.
+     * Shards only return their shard_size most frequent terms, and the response reports the error bound.
+     */
+    public boolean isTopK() {
+        return shardSize > 0 && sortType.order == (SortType.SORT_COUNT | SortType.SORT_REVERSE)
+                && count_range == null && replacers == null && term == null;
+    }
+
+    /** True if this is the second round of an exact top-K request, where only the counts of the candidates are fetched */
+    public boolean isCandidateRound() {
+        return candidates != null;
+    }
+
+    /** True if an exact top-K request needs a second round, because terms were pruned in the first round */
+    public boolean needsCandidateRound() {
+        return exact && isTopK() && candidates == null && termlist.getCountErrorBound() > 0;
+    }
+
+    /**
+     * Creates the request for the second round of an exact top-K request.
+     * The candidates are the terms that were returned in the first round. The error bound of the first round is carried over.
+     */
+    public TermlistTransportItem createCandidateRequest() {
+        TermlistTransportItem ret = new TermlistTransportItem(this);
+        ret.candidates = termlist.createCandidates(this);
+        ret.termlist.addCountErrorBound(termlist.getCountErrorBound());
+        return ret;
+    }
+
+    /** Paging: each request returns the first size terms after search_after */
+    public boolean isPaged() {
+        return size > 0;
+    }
+
+    /**
+     * Returns the search_after value for the next page: the last term of this page.
+     * Returns null if this was the last page (or if the request is not paged).
+     */
+    public String getNextSearchAfter() {
+        if (!isPaged())
+            return null;
+        termlist.pruneToFirstTerms(size);
+        if (termlist.size() < size)
+            return null;
+        return TypeHandler.create(termlist.getType()).toString(termlist.lastTerm());
+    }
+
     public String getOutputType() {
         return outputType;
     }
@@ -279,9 +379,12 @@ public class TermlistTransportItem extends TransportItemBase {
         exportToJson(builder);
         builder.endObject();
 
+        String nextSearchAfter = getNextSearchAfter();
         TermList.TermListLimits limits = termlist.getLimits(this);
         builder.startObject("response");
         limits.exportToJson(builder);
+        if (isPaged())
+            builder.field(P_SEARCH_AFTER, nextSearchAfter);
 
         builder.startObject("fields");
         TypeHandler th = TypeHandler.create(termlist.getType());
@@ -303,6 +406,18 @@ public class TermlistTransportItem extends TransportItemBase {
         return builder;
     }
 
+    /**
+     * Writes the consolidated terms as lines of text, in the format requested by the output parameter
+     */
+    public TermWriter exportTerms(OutputStream out) throws IOException {
+        if (isPaged())
+            termlist.pruneToFirstTerms(size);
+        TypeHandler th = TypeHandler.create(term == null ? termlist.getType() : "text");
+        TermWriter writer = TermWriter.create(outputFormat, out, th);
+        termlist.exportTerms(writer, this, termlist.getLimits(this));
+        return writer;
+    }
+
     public void exportToJson(XContentBuilder builder) throws IOException {
         builder.field(P_FIELD, fields);
         builder.field(P_RANGE, range);
@@ -314,93 +429,199 @@ public class TermlistTransportItem extends TransportItemBase {
         builder.field(P_REPL_EXPR, replExpr);
         builder.field(P_COLLISIONS_ONLY, collisionsOnly);
         builder.field(P_SORT, sortType.toString());
+        builder.field(P_SHARD_SIZE, shardSize);
+        builder.field(P_EXACT, exact);
+        if (isPaged()) {
+            builder.field(P_SEARCH_AFTER, searchAfter);
+            builder.field(P_SIZE, size);
+        }
     }
 
     public void processShard (IndexShard indexShard) throws Exception {
         Searcher searcher = indexShard.acquireSearcher("termlist");
-        searcher.getIndexReader().getContext().leaves();
         try {
-            for (LeafReaderContext c : searcher.getIndexReader().getContext().leaves()) {
-                LeafReader rdr = c.reader();
-                System.out.println("getTerm=" + term);
-                if (term == null)
-                    extractTerms(rdr, indexShard);
-                else
-                    extractFields(rdr, indexShard);
+            List<LeafReaderContext> leaves = searcher.getIndexReader().getContext().leaves();
+            if (term != null) {
+                for (LeafReaderContext c : leaves)
+                    extractFields(c.reader(), indexShard);
+                return;
             }
+
+            final List<ShardField> shardFields = resolveFields(leaves, indexShard);
+            if (shardFields.isEmpty())
+                return;
+            final Pattern pattern = createPattern();
+            final Pattern notPattern = createNotPattern();
+            TermlistExecutor.INSTANCE.processLeaves(leaves, TermlistExecutor.INSTANCE.resolveParallelism(parallelism), () -> new SegmentExecutor.LeafWorker() {
+                private final TermList partial = new TermList(sortType);
+                private final ShardFieldStats[] stats = new ShardFieldStats[shardFields.size()];
+
+                @Override
+                public void process(LeafReaderContext leaf) throws IOException {
+                    extractTerms(leaf.reader(), shardFields, pattern, notPattern, partial, stats);
+                }
+
+                @Override
+                public void merge() {
+                    termlist.combine(partial);
+                    for (int i = 0; i < stats.length; i++)
+                        shardFields.get(i).addStats(stats[i]);
+                }
+            });
+
+            String indexName = indexShard.shardId().getIndexName();
+            for (ShardField f : shardFields)
+                termlist.addField(new FieldInfoItem(indexName, f.info, f.mft, f.stats));
+            if (isTopK() && candidates == null)
+                termlist.pruneToTopCounts(shardSize);
+            if (isPaged())
+                termlist.pruneToFirstTerms(size);
         } finally {
             searcher.close();
         }
     }
 
-    private void extractTerms(LeafReader rdr, IndexShard indexShard) throws Exception {
-
-        FieldInfos fieldInfos = rdr.getFieldInfos();
-        //Fields luceneFields = MultiFields.getFields(rdr);
-        if (fieldInfos == null || fieldInfos.size() == 0)
-            return;
+    /**
+     * A requested field of the shard, with its mapping and type handler.
+     * These are resolved once per shard, and the statistics of the segments are combined into it.
+     */
+    private static class ShardField {
+        final FieldInfo info;
+        final MappedFieldType mft;
+        final TypeHandler typeHandler;
+        final BytesRange range;
+        /** filter, not_filter and range as 1 automaton, or null if the terms must be matched one by one */
+        final CompiledAutomaton automaton;
+        /** Paging: only terms after this one are returned */
+        final BytesRef after;
+        ShardFieldStats stats;
+
+        ShardField(FieldInfo info, MappedFieldType mft, TypeHandler typeHandler, BytesRange range, CompiledAutomaton automaton, BytesRef after) {
+            this.info = info;
+            this.mft = mft;
+            this.typeHandler = typeHandler;
+            this.range = range;
+            this.automaton = automaton;
+            this.after = after;
+        }
 
-        Pattern pattern = createPattern();
-        Pattern notPattern = createNotPattern();
-        boolean fieldsSpecified = fields != null;
+        void addStats(ShardFieldStats other) {
+            if (other == null) return;
+            if (stats == null) stats = other;
+            else stats.combine(other);
+        }
+    }
 
-        for (Iterator<FieldInfo> it = fieldInfos.iterator(); it.hasNext();) {
-            FieldInfo fieldInfo = it.next();
-            if (isFieldRequested(fieldInfo.name)) {
-                // SourceFieldType xx=null;
+    private List<ShardField> resolveFields(List<LeafReaderContext> leaves, IndexShard indexShard) {
+        Map<String, ShardField> ret = new LinkedHashMap<String, ShardField>();
+        for (LeafReaderContext c : leaves) {
+            FieldInfos fieldInfos = c.reader().getFieldInfos();
+            if (fieldInfos == null)
+                continue;
+            for (FieldInfo fieldInfo : fieldInfos) {
+                if (ret.containsKey(fieldInfo.name) || !isFieldRequested(fieldInfo.name))
+                    continue;
                 MappedFieldType mft = indexShard.mapperService().fullName(fieldInfo.name);
-                if (mft==null) {;
-                   System.out.printf ("ERROR: field %s has no es-fieldmapping\n", fieldInfo.name);
-                   continue;
+                if (mft==null) {
+                    System.out.printf ("ERROR: field %s has no es-fieldmapping\n", fieldInfo.name);
+                    continue;
                 }
-                System.out.printf("MappedFieldType for %s : %s\n", fieldInfo.name, mft==null ? "null": mft.getClass().getName());
                 TypeHandler typeHandler = TypeHandler.create(mft, fieldInfo.name);
                 termlist.setType(typeHandler.typeName);
-                Terms terms = rdr.terms(fieldInfo.name);
-                ShardFieldStats stats = terms != null ? new ShardFieldStats(terms) : extractPointStats (rdr, fieldInfo.name);
-                //FieldData fdt;
-//                org.elasticsearch.index.mapper.TextFieldMapper.TextFieldType
+                BytesRange range = this.range == null ? null : new BytesRange (this.range, typeHandler);
+                // The filters are matched against the utf8 text, so only string fields can be intersected with an automaton
+                CompiledAutomaton automaton = typeHandler instanceof StringHandler ? TermFilterAutomaton.compile(filterExpr, notFilterExpr, range) : null;
+                BytesRef after = searchAfter == null ? null : new BytesRef(typeHandler.toBytes(searchAfter));
+                ret.put(fieldInfo.name, new ShardField(fieldInfo, mft, typeHandler, range, automaton, after));
+            }
+        }
+        return new ArrayList<ShardField>(ret.values());
+    }
 
-                termlist.addField(new FieldInfoItem(indexShard.shardId().getIndexName(), fieldInfo, mft, stats));
-                if (!fieldsSpecified)
-                    continue;
+    /**
+     * Extracts the terms of 1 segment into the (partial) termlist. Called concurrently for different segments.
+     */
+    private void extractTerms(LeafReader rdr, List<ShardField> shardFields, Pattern pattern, Pattern notPattern,
+            TermList termlist, ShardFieldStats[] stats) throws IOException {
+        boolean fieldsSpecified = fields != null;
 
-                BytesRange range = this.range == null ? null : new BytesRange (this.range, typeHandler);
-                if (terms == null) {
-                    if (fieldInfo.getPointDataDimensionCount() > 0 && fieldInfo.getPointNumBytes() >= 0) //PW7 kijk ook voor index variant
-                        extractPointTerms(termlist, range, rdr, fieldInfo.name);
-                    continue;
-                }
+        for (int f = 0; f < shardFields.size(); f++) {
+            ShardField shardField = shardFields.get(f);
+            String field = shardField.info.name;
+            FieldInfo fieldInfo = rdr.getFieldInfos().fieldInfo(field);
+            if (fieldInfo == null)
+                continue;
+            Terms terms = rdr.terms(field);
+            ShardFieldStats segStats = terms != null ? new ShardFieldStats(terms) : extractPointStats (rdr, fieldInfo);
+            if (segStats != null) {
+                if (stats[f] == null) stats[f] = segStats;
+                else stats[f].combine(segStats);
+            }
+            if (!fieldsSpecified)
+                continue;
 
+            BytesRange range = shardField.range;
+            if (terms == null) {
+                PointCounter.count(rdr, fieldInfo, termlist, range, shardField.after, size, candidates);
+                continue;
+            }
+
+            if (candidates != null) {
+                // The candidates already passed the filters in the first round
                 TermsEnum termsEnum = terms.iterator();
-                BytesRef text;
-
-                IntRange lengthRange = new IntRange(length_range);
-                boolean needText = lengthRange != null || notPattern != null || pattern != null;
-                while ((text = termsEnum.next()) != null) {
-                    byte[] bytes = text.bytes;
-                    boolean owned = false;
-                    if (text.offset != 0 || text.length != bytes.length) {
-                        owned = true;
-                        bytes = Arrays.copyOfRange(bytes, text.offset, text.length);
-                    }
-
-                    if (range != null && !range.isInRange(bytes))
-                        continue;
+                TermList.Cursor cursor = candidates.cursor();
+                while (cursor.next()) {
+                    if (termsEnum.seekExact(cursor.term()))
+                        termlist.add(cursor.term(), termsEnum.docFreq());
+                }
+                continue;
+            }
+            BytesRef text;
+
+            // With an automaton the terms enum only returns terms that passed the filters and the range
+            CompiledAutomaton automaton = shardField.automaton;
+            BytesRef after = shardField.after;
+            // An automaton that accepts everything (like .*) needs no intersection, so the plain enum can seek to the page
+            boolean seekable = automaton == null || automaton.type == CompiledAutomaton.AUTOMATON_TYPE.ALL;
+            TermsEnum termsEnum;
+            if (seekable)
+                termsEnum = terms.iterator();
+            else if (after != null && automaton.type == CompiledAutomaton.AUTOMATON_TYPE.NORMAL)
+                termsEnum = terms.intersect(automaton, after); // Starts after the paging cursor
+            else
+                termsEnum = automaton.getTermsEnum(terms);
+            BytesRange termRange = automaton != null ? null : range;
+            Pattern termPattern = automaton != null ? null : pattern;
+            Pattern termNotPattern = automaton != null ? null : notPattern;
+            IntRange lengthRange = length_range == null ? null : new IntRange(length_range);
+            boolean needText = lengthRange != null || termNotPattern != null || termPattern != null;
+
+            // Jump to the first term of the range or the page, and stop as soon as we passed the range or filled the page
+            BytesRef seekTo = termRange == null ? null : new BytesRef(termRange.low);
+            if (seekable && after != null && (seekTo == null || after.compareTo(seekTo) >= 0))
+                seekTo = after;
+            if (seekTo != null)
+                text = termsEnum.seekCeil(seekTo) == SeekStatus.END ? null : termsEnum.term();
+            else
+                text = termsEnum.next();
+            int todo = size > 0 ? size : Integer.MAX_VALUE;
+            for (; text != null && todo > 0; text = termsEnum.next()) {
+                if (termRange != null && termRange.isAboveRange(text))
+                    break;
+                if (after != null && text.compareTo(after) <= 0)
+                    continue;
+
+                if (needText) {
+                    String term = text.utf8ToString();
+                    if (lengthRange != null && !lengthRange.isInRange (term.length())) continue;
 
-                    if (needText) {
-                        String term = text.utf8ToString();
-                        if (lengthRange != null && !lengthRange.isInRange (term.length())) continue;
-
-                        if (notPattern != null && notPattern.matcher(term).find())
-                            continue;
-                        if (pattern != null && !pattern.matcher(term).find())
-                            continue;
-                    }
-                    System.out.printf("ADD %s: %d\n", term, termsEnum.docFreq());
-                    termlist.add(bytes, owned, termsEnum.docFreq());
+                    if (termNotPattern != null && termNotPattern.matcher(term).find())
+                        continue;
+                    if (termPattern != null && !termPattern.matcher(term).find())
+                        continue;
                 }
-                System.out.printf("ADDED %d terms\n", termlist.size());
+                termlist.add(text, termsEnum.docFreq());
+                --todo;
             }
         }
     }
@@ -420,72 +641,15 @@ public class TermlistTransportItem extends TransportItemBase {
             Term term = new Term(name, strTerm);
             int docFreq = rdr.docFreq(term);
             if (docFreq > 0)
-                termlist.add(typeHandler.toBytes(name), true, docFreq);
+                termlist.add(typeHandler.toBytes(name), docFreq);
         }
     }
 
-    private void extractPointTerms(TermList termlist, BytesRange range, IndexReader rdr, String field) throws IOException {
-        IndexReaderContext ctx = rdr.getContext();
-        List<LeafReaderContext> leaves = ctx.leaves();
-        for (LeafReaderContext leave : leaves) {
-            LeafReader leaveRdr = leave.reader();
-            PointValues values = leaveRdr.getPointValues(field);
-            if (values == null)
-                continue;
-            try {
-               values.intersect(new PointsVisitor(termlist, range));
-            } catch (IllegalArgumentException x) {  //Expected: bug in Lucene
-            }
-        }
-    }
-    private ShardFieldStats extractPointStats(IndexReader rdr, String field) throws IOException {
-        IndexReaderContext ctx = rdr.getContext();
-        List<LeafReaderContext> leaves = ctx.leaves();
-        ShardFieldStats stats = null;
-        for (LeafReaderContext leave : leaves) {
-            LeafReader leafRdr = leave.reader();
-            PointValues values = leafRdr.getPointValues(field);
-            if (values == null)
-                continue;
-            try {
-                ShardFieldStats tmp = new ShardFieldStats(values);
-                if (stats==null) stats = tmp;
-                else stats.combine(tmp);
-            } catch (IllegalArgumentException x) {  //Expected: bug in Lucene
-            }
-        }
-        return stats;
-    }
-
-    /**
-     * This class enumerates all values in the BK_Tree and stores them in the
-     * termlist
-     */
-    static class PointsVisitor implements IntersectVisitor {
-        BytesRange range;
-        TermList termlist;
-
-        public PointsVisitor(TermList termlist, BytesRange range) {
-            this.termlist = termlist;
-            this.range = range;
-        }
-
-        @Override
-        public void visit(int docID) throws IOException {
-        }
-
-        @Override
-        public void visit(int docID, byte[] bytes) throws IOException {
-            if (range == null || range.isInRange(bytes))
-                termlist.add(bytes, false, 1);
-        }
-
-        @Override
-        public Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
-            return Relation.CELL_CROSSES_QUERY; // Needed to get the correct
-                                                // visit() called!
-        }
-
+    private static ShardFieldStats extractPointStats(LeafReader rdr, FieldInfo fieldInfo) throws IOException {
+        if (fieldInfo.getPointDataDimensionCount() == 0)
+            return null;
+        PointValues values = rdr.getPointValues(fieldInfo.name);
+        return values == null ? null : new ShardFieldStats(values);
     }
 
 }
@@ -19,6 +19,9 @@
 
 package nl.bitmanager.elasticsearch.support;
 
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FutureArrays;
+
 import nl.bitmanager.elasticsearch.typehandlers.TypeHandler;
 
 public class BytesRange {
@@ -69,12 +72,30 @@ public class BytesRange {
         return range;
     }
 
+    /** True if high is part of the range. That is only the case if the range is a single value */
+    public boolean isRightInclusive () {
+        return includingRight;
+    }
+
     public boolean isInRange (byte[] x) {
         if (BytesHelper.bytesComparer.compare(low, x) > 0) return false;
         int rc = BytesHelper.bytesComparer.compare(x, high);
         return includingRight ? (rc <= 0) : (rc<0);
     }
 
+    /** Returns true if x sorts after the range. An ascending scan of the terms can stop there */
+    public boolean isAboveRange (BytesRef x) {
+        int rc = FutureArrays.compareUnsigned(x.bytes, x.offset, x.offset + x.length, high, 0, high.length);
+        return includingRight ? (rc > 0) : (rc >= 0);
+    }
+
+    /** Returns true if none of the values between min and max (both inclusive) is in the range. Used to skip BKD cells */
+    public boolean isOutsideRange (byte[] min, byte[] max) {
+        if (BytesHelper.bytesComparer.compare(max, low) < 0) return true;
+        int rc = BytesHelper.bytesComparer.compare(min, high);
+        return includingRight ? (rc > 0) : (rc >= 0);
+    }
+
     static {
         MIN_VALUE = new byte[0];
         byte[] hv = new byte[256];
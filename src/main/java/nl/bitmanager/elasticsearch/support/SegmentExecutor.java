@@ -0,0 +1,149 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.support;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Bounded executor that processes the segments (or other items) of a shard in parallel.
+ * Every user gets its own named thread pool, so that for instance a termlist doesn't compete with aggregations.
+ * The size of the pool is determined by a node setting, which is also the default degree of parallelism.
+ */
+public class SegmentExecutor {
+    public final String poolName;
+    public final Setting<Integer> parallelismSetting;
+
+    private volatile ThreadPool threadPool;
+    private volatile int defaultParallelism = 1;
+
+    public SegmentExecutor (String poolName, String parallelismSetting) {
+        this.poolName = poolName;
+        this.parallelismSetting = Setting.intSetting(parallelismSetting, 1, 1, Property.NodeScope);
+    }
+
+    public ExecutorBuilder<?> createExecutorBuilder (Settings settings) {
+        int size = parallelismSetting.get(settings);
+        return new FixedExecutorBuilder(settings, poolName, size, 64 * size, "thread_pool." + poolName);
+    }
+
+    public void init (ThreadPool pool, Settings settings) {
+        threadPool = pool;
+        defaultParallelism = parallelismSetting.get(settings);
+    }
+
+    /** Resolves the requested parallelism. A value <= 0 means: use the node default */
+    public int resolveParallelism (int requested) {
+        int ret = requested <= 0 ? defaultParallelism : requested;
+        return threadPool == null ? 1 : ret;
+    }
+
+    /**
+     * Work done by 1 thread over a part of the items (leaves or buckets).
+     * merge() is called after all items are processed, and is called synchronized.
+     */
+    public static abstract class Worker<T> {
+        public abstract void process (T item) throws IOException;
+        public void merge () {}
+    }
+
+    /** Worker that processes segments */
+    public static abstract class LeafWorker extends Worker<LeafReaderContext> {
+    }
+
+    /**
+     * Processes all leaves by at most parallelism workers.
+     */
+    public void processLeaves (List<LeafReaderContext> leaves, int parallelism, Supplier<? extends Worker<LeafReaderContext>> factory) throws IOException {
+        process (leaves, parallelism, factory);
+    }
+
+    /**
+     * Processes all items by at most parallelism workers.
+     * The calling thread participates as one of the workers. If the pool rejects a worker, that worker is run
+     * by the calling thread as well.
+     */
+    public <T> void process (List<T> items, int parallelism, Supplier<? extends Worker<T>> factory) throws IOException {
+        final int P = Math.min(parallelism, items.size());
+        if (P <= 1) {
+            Worker<T> worker = factory.get();
+            for (T item: items) worker.process(item);
+            worker.merge();
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final Object lock = new Object();
+        ExecutorService executor = threadPool.executor(poolName);
+        List<Future<?>> futures = new ArrayList<Future<?>>(P-1);
+        List<Worker<T>> rejected = new ArrayList<Worker<T>>();
+        for (int i=1; i<P; i++) {
+            final Worker<T> worker = factory.get();
+            try {
+                futures.add (executor.submit(() -> {
+                    runWorker(worker, items, next, lock);
+                    return null;
+                }));
+            } catch (RejectedExecutionException e) {
+                rejected.add(worker);
+            }
+        }
+        runWorker(factory.get(), items, next, lock);
+        for (Worker<T> worker: rejected) runWorker(worker, items, next, lock);
+
+        for (Future<?> f: futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException)cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static <T> void runWorker (Worker<T> worker, List<T> items, AtomicInteger next, Object lock) throws IOException {
+        int i;
+        while ((i = next.getAndIncrement()) < items.size())
+            worker.process(items.get(i));
+        synchronized (lock) {
+            worker.merge();
+        }
+    }
+}
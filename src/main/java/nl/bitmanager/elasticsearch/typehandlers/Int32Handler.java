@@ -38,7 +38,7 @@ public class Int32Handler extends Int64Handler {
     @Override
     public byte[] toBytes(String s) {
         byte[] bytes = new byte[4];
-        NumericUtils.longToSortableBytes(Integer.parseInt(s), bytes, 0);
+        NumericUtils.intToSortableBytes(Integer.parseInt(s), bytes, 0);
         return bytes;
     }
 }
@@ -0,0 +1,55 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IdHashesTest {
+
+    @Test
+    public void testUnion() {
+        Random rnd = new Random(42);
+        List<long[]> sets = new ArrayList<long[]>();
+        long[] all = new long[0];
+        for (int s=0; s<5; s++) {
+            long[] set = new long[rnd.nextInt(1000)];
+            for (int i=0; i<set.length; i++) set[i] = rnd.nextInt(3000);
+            set = Arrays.copyOf(set, IdHashes.sortUnique(set, set.length));
+            sets.add(set);
+            all = Arrays.copyOf(all, all.length + set.length);
+            System.arraycopy(set, 0, all, all.length - set.length, set.length);
+        }
+        sets.add(IdHashes.EMPTY);
+        long[] expected = Arrays.copyOf(all, IdHashes.sortUnique(all, all.length));
+
+        assertArrayEquals (expected, IdHashes.union(sets, Integer.MAX_VALUE));
+        assertArrayEquals (expected, IdHashes.union(sets, expected.length));
+        assertNull (IdHashes.union(sets, expected.length - 1));
+        assertArrayEquals (IdHashes.EMPTY, IdHashes.union(new ArrayList<long[]>(), 10));
+        assertNull (IdHashes.union(Arrays.asList(new long[] {1, 2, 3}), 2));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Test;
+
+public class OrdinalSetTest {
+
+    @Test
+    public void testSparse() {
+        OrdinalSet set = new OrdinalSet(1000000);
+        set.set(7);
+        set.set(3);
+        set.set(7);
+        set.set(999);
+        assertEquals (false, set.isDense());
+        assertEquals (3, set.cardinality());
+        assertEquals (true, set.get(3));
+        assertEquals (false, set.get(4));
+        assertEquals (true, set.get(999));
+
+        OrdinalSet.OrdIterator it = set.iterator();
+        assertEquals (3, it.next());
+        assertEquals (7, it.next());
+        assertEquals (999, it.next());
+        assertEquals (OrdinalSet.NO_MORE_ORDS, it.next());
+    }
+
+    @Test
+    public void testSwitchToDense() {
+        Random rnd = new Random(42);
+        OrdinalSet set = new OrdinalSet(10000);
+        FixedBitSet expected = new FixedBitSet(10000);
+        for (int i=0; i<5000; i++) {
+            int ord = rnd.nextInt(10000);
+            set.set(ord);
+            expected.set(ord);
+        }
+        assertEquals (true, set.isDense());
+        assertEquals (expected.cardinality(), set.cardinality());
+        for (int i=0; i<10000; i++)
+            assertEquals (expected.get(i), set.get(i));
+    }
+
+    @Test
+    public void testOr() {
+        OrdinalSet dense = new OrdinalSet(640);
+        for (int i=0; i<640; i+=2) dense.set(i);
+        assertEquals (true, dense.isDense());
+
+        OrdinalSet sparse = new OrdinalSet(640);
+        sparse.set(1);
+        sparse.set(700);
+        sparse.or(dense);
+        assertEquals (true, sparse.isDense());
+        assertEquals (322, sparse.cardinality());
+        assertEquals (true, sparse.get(700));
+
+        OrdinalSet other = new OrdinalSet(640);
+        other.set(5);
+        dense.or(other);
+        assertEquals (321, dense.cardinality());
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Builds a small multi-segment index with multi-valued child and parent ids, and compares
+ * the translation of ParentOrdinalMap against a brute-force child-to-parents map.
+ */
+public class ParentOrdinalMapTest extends LuceneTestCase {
+    private static final String CHILD = "child";
+    private static final String PARENT = "parent";
+
+    private Directory dir;
+    private DirectoryReader reader;
+    private List<LeafReaderContext> leaves;
+    private OrdinalMap childMap, parentMap;
+    private HashMap<Integer, Set<Integer>> expected;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Random rnd = random();
+        dir = newDirectory();
+        RandomIndexWriter writer = new RandomIndexWriter(rnd, dir);
+        int docs = atLeast(500);
+        for (int i=0; i<docs; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            int children = rnd.nextInt(4); //Some docs have no child id at all
+            for (int j=0; j<children; j++)
+                doc.add(new SortedSetDocValuesField(CHILD, new BytesRef("c" + rnd.nextInt(200))));
+            int parents = rnd.nextInt(10) == 0 ? 0 : 1 + rnd.nextInt(2);
+            for (int j=0; j<parents; j++)
+                doc.add(new SortedSetDocValuesField(PARENT, new BytesRef("p" + rnd.nextInt(60))));
+            writer.addDocument(doc);
+            if (rnd.nextInt(100) == 0) writer.commit();
+        }
+        for (int i=0; i<docs/20; i++)
+            writer.deleteDocuments(new Term("id", Integer.toString(rnd.nextInt(docs))));
+        reader = writer.getReader();
+        writer.close();
+        leaves = reader.leaves();
+
+        childMap = ordinalMap(CHILD);
+        parentMap = ordinalMap(PARENT);
+        expected = bruteForce();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        reader.close();
+        dir.close();
+        super.tearDown();
+    }
+
+    public void testTranslateAll() throws IOException {
+        ParentOrdinalMap map = build(null);
+        int mapped = 0;
+        for (int ord=0; ord<maxOrd(childMap); ord++) {
+            assertTranslation(map, null, single(ord));
+            if (expected.containsKey(ord)) mapped++;
+        }
+        assertEquals(mapped, map.mappedOrdinals());
+
+        for (int i=0; i<20; i++)
+            assertTranslation(map, null, randomOrdinals(random().nextInt(maxOrd(childMap)+1)));
+    }
+
+    public void testTranslateWanted() throws IOException {
+        for (int i=0; i<10; i++) {
+            OrdinalSet wanted = randomOrdinals(random().nextInt(maxOrd(childMap)+1));
+            ParentOrdinalMap map = build(wanted);
+            for (int ord=0; ord<maxOrd(childMap); ord++)
+                assertTranslation(map, wanted, single(ord));
+            assertTranslation(map, wanted, randomOrdinals(maxOrd(childMap)));
+        }
+    }
+
+    private void assertTranslation (ParentOrdinalMap map, OrdinalSet wanted, OrdinalSet src) {
+        Set<Integer> want = new HashSet<Integer>();
+        OrdinalSet.OrdIterator it = src.iterator();
+        for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next()) {
+            if (wanted != null && !wanted.get(ord)) continue;
+            Set<Integer> parents = expected.get(ord);
+            if (parents != null) want.addAll(parents);
+        }
+
+        OrdinalSet dst = new OrdinalSet(maxOrd(parentMap));
+        map.translate(src, dst);
+        Set<Integer> got = new HashSet<Integer>();
+        it = dst.iterator();
+        for (int ord = it.next(); ord != OrdinalSet.NO_MORE_ORDS; ord = it.next())
+            got.add(ord);
+        assertEquals(src.toString(), want, got);
+    }
+
+    private ParentOrdinalMap build (OrdinalSet wanted) throws IOException {
+        return ParentOrdinalMap.build(leaves, maxOrd(childMap), maxOrd(parentMap), wanted, null, new MemoryAccounter(null, "test"),
+            new ParentOrdinalMap.LeafSource() {
+                @Override
+                public DocIdSetIterator docs(LeafReaderContext leaf) throws IOException {
+                    return DocValues.getSortedSet(leaf.reader(), CHILD);
+                }
+
+                @Override
+                public SortedSetDocValues ordinals(LeafReaderContext leaf) throws IOException {
+                    return globalOrdinals(childMap, CHILD, leaf);
+                }
+
+                @Override
+                public SortedSetDocValues parentOrdinals(LeafReaderContext leaf) throws IOException {
+                    return globalOrdinals(parentMap, PARENT, leaf);
+                }
+            });
+    }
+
+    /** Relates every child ordinal of a live doc to every parent ordinal of that doc */
+    private HashMap<Integer, Set<Integer>> bruteForce() throws IOException {
+        HashMap<Integer, Set<Integer>> ret = new HashMap<Integer, Set<Integer>>();
+        for (LeafReaderContext leaf: leaves) {
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            for (int doc=0; doc<leaf.reader().maxDoc(); doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)) continue;
+                List<Integer> children = ordinals(globalOrdinals(childMap, CHILD, leaf), doc);
+                List<Integer> parents = ordinals(globalOrdinals(parentMap, PARENT, leaf), doc);
+                if (parents.isEmpty()) continue;
+                for (int child: children) {
+                    Set<Integer> set = ret.get(child);
+                    if (set == null) ret.put(child, set = new HashSet<Integer>());
+                    set.addAll(parents);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static List<Integer> ordinals (SortedSetDocValues values, int doc) throws IOException {
+        List<Integer> ret = new ArrayList<Integer>();
+        if (!values.advanceExact(doc)) return ret;
+        for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd())
+            ret.add((int)ord);
+        return ret;
+    }
+
+    private OrdinalSet single (int ord) {
+        OrdinalSet ret = new OrdinalSet(maxOrd(childMap));
+        ret.set(ord);
+        return ret;
+    }
+
+    private OrdinalSet randomOrdinals (int count) {
+        OrdinalSet ret = new OrdinalSet(maxOrd(childMap));
+        for (int i=0; i<count; i++) ret.set(random().nextInt(maxOrd(childMap)));
+        return ret;
+    }
+
+    private static int maxOrd (OrdinalMap map) {
+        return (int)map.getValueCount();
+    }
+
+    private OrdinalMap ordinalMap (String field) throws IOException {
+        SortedSetDocValues[] perLeaf = new SortedSetDocValues[leaves.size()];
+        for (LeafReaderContext leaf: leaves)
+            perLeaf[leaf.ord] = DocValues.getSortedSet(leaf.reader(), field);
+        return OrdinalMap.build(null, perLeaf, PackedInts.DEFAULT);
+    }
+
+    /** Segment ordinals mapped onto global ordinals, like ValuesSource.globalOrdinalsValues() */
+    private static SortedSetDocValues globalOrdinals (OrdinalMap map, String field, LeafReaderContext leaf) throws IOException {
+        final SortedSetDocValues values = DocValues.getSortedSet(leaf.reader(), field);
+        final LongValues mapping = map.getGlobalOrds(leaf.ord);
+        final long valueCount = map.getValueCount();
+        return new SortedSetDocValues() {
+            @Override
+            public long nextOrd() throws IOException {
+                long ord = values.nextOrd();
+                return ord == NO_MORE_ORDS ? ord : mapping.get(ord);
+            }
+
+            @Override
+            public BytesRef lookupOrd(long ord) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long getValueCount() {
+                return valueCount;
+            }
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                return values.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return values.docID();
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return values.nextDoc();
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                return values.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return values.cost();
+            }
+        };
+    }
+}
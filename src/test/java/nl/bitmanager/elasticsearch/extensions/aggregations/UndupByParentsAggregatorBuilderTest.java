@@ -0,0 +1,54 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.junit.Test;
+
+public class UndupByParentsAggregatorBuilderTest {
+
+    @Test
+    public void testMaxExactIds() throws IOException {
+        assertEquals (UndupByParentsAggregatorBuilder.DEFAULT_MAX_EXACT_IDS, parse("{\"parent_paths\":\"a/b\"}").maxExactIds);
+        assertEquals (1, parse("{\"parent_paths\":\"a/b\", \"exact_reduce\":true, \"max_exact_ids\":1}").maxExactIds);
+        for (String value : new String[] {"0", "-5"}) {
+            try {
+                parse("{\"parent_paths\":\"a/b\", \"exact_reduce\":true, \"max_exact_ids\":" + value + "}");
+                fail ("max_exact_ids=" + value + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue (e.getMessage(), e.getMessage().contains("[max_exact_ids]"));
+            }
+        }
+    }
+
+    private static UndupByParentsAggregatorBuilder parse (String json) throws IOException {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            parser.nextToken();
+            return UndupByParentsAggregatorBuilder.parse("undup", parser);
+        }
+    }
+}
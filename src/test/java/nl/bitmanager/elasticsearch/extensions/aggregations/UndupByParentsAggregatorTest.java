@@ -0,0 +1,36 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.aggregations;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class UndupByParentsAggregatorTest {
+
+    @Test
+    public void testEngineChoice() {
+        // Few buckets stay on the doc-major engine, so a cold ordinal map cache is never built for them
+        assertEquals (false, UndupByParentsAggregator.useOrdinalMajor(1, 10000000));
+        assertEquals (false, UndupByParentsAggregator.useOrdinalMajor(4, 10000000));
+        assertEquals (true, UndupByParentsAggregator.useOrdinalMajor(100, 10000000));
+        assertEquals (true, UndupByParentsAggregator.useOrdinalMajor(1, 2 * UndupByParentsAggregator.ORDINAL_MAJOR_THRESHOLD));
+    }
+}
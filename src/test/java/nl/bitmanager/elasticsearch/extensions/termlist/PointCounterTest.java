@@ -0,0 +1,139 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PointValues.IntersectVisitor;
+import org.apache.lucene.index.PointValues.Relation;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+public class PointCounterTest {
+
+    @Test
+    public void test() throws IOException {
+        check (1); // 4 bytes, collected as longs
+        check (2); // 8 bytes, collected as longs
+        check (3); // 12 bytes, collected as byte arrays
+    }
+
+    /** Compares full and paged counts against the number of docs per distinct value */
+    private static void check (int dims) throws IOException {
+        Random rnd = new Random(dims);
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+                for (int d = 0; d < 2000; d++) {
+                    Document doc = new Document();
+                    int[] value = new int[dims];
+                    int n = rnd.nextInt(3);
+                    for (int i = 0; i < n; i++) {
+                        for (int k = 0; k < dims; k++) value[k] = rnd.nextInt(30) - 10;
+                        doc.add(new IntPoint("f", value));
+                        if (rnd.nextInt(5) == 0) doc.add(new IntPoint("f", value)); // Same value twice in 1 doc
+                    }
+                    writer.addDocument(doc);
+                }
+                writer.forceMerge(1);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                LeafReader rdr = reader.leaves().get(0).reader();
+                FieldInfo fieldInfo = rdr.getFieldInfos().fieldInfo("f");
+                TermList all = count(rdr, fieldInfo, null, 0);
+                TreeMap<BytesRef, Integer> expected = docCounts(rdr, fieldInfo);
+                assertTerms (expected, all, null, Integer.MAX_VALUE);
+
+                //Page through the values with small pages, so the buffer is compacted
+                BytesRef after = null;
+                int pages = 0;
+                while (true) {
+                    TermList page = count(rdr, fieldInfo, after, 7);
+                    assertTerms (expected, page, after, 7);
+                    if (page.size() == 0) break;
+                    after = new BytesRef(page.lastTerm());
+                    pages++;
+                }
+                assertEquals ((expected.size() + 6) / 7, pages);
+            }
+        }
+    }
+
+    private static TermList count (LeafReader rdr, FieldInfo fieldInfo, BytesRef after, int limit) throws IOException {
+        TermList ret = new TermList(new SortType("term"));
+        PointCounter.count(rdr, fieldInfo, ret, null, after, limit, null);
+        return ret;
+    }
+
+    /** Counts the docs per value by visiting every point with its docid */
+    private static TreeMap<BytesRef, Integer> docCounts (LeafReader rdr, FieldInfo fieldInfo) throws IOException {
+        final TreeMap<BytesRef, Set<Integer>> docs = new TreeMap<BytesRef, Set<Integer>>();
+        rdr.getPointValues(fieldInfo.name).intersect(new IntersectVisitor() {
+            @Override
+            public void visit(int docID) {
+            }
+
+            @Override
+            public void visit(int docID, byte[] packedValue) {
+                BytesRef key = new BytesRef(packedValue.clone());
+                Set<Integer> set = docs.get(key);
+                if (set == null) docs.put(key, set = new HashSet<Integer>());
+                set.add(docID);
+            }
+
+            @Override
+            public Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+                return Relation.CELL_CROSSES_QUERY;
+            }
+        });
+        TreeMap<BytesRef, Integer> ret = new TreeMap<BytesRef, Integer>();
+        for (Map.Entry<BytesRef, Set<Integer>> e : docs.entrySet())
+            ret.put(e.getKey(), e.getValue().size());
+        return ret;
+    }
+
+    private static void assertTerms (TreeMap<BytesRef, Integer> expected, TermList actual, BytesRef after, int limit) {
+        Map<BytesRef, Integer> page = after == null ? expected : expected.tailMap(after, false);
+        TermList.Cursor cursor = actual.cursor();
+        int n = 0;
+        for (Map.Entry<BytesRef, Integer> e : page.entrySet()) {
+            if (n++ == limit) break;
+            assertTrue (cursor.next());
+            assertEquals (e.getKey(), cursor.term());
+            assertEquals (e.getValue().intValue(), cursor.count());
+        }
+        assertFalse (cursor.next());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import static org.junit.Assert.*;
+
+import java.util.regex.Pattern;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.junit.Test;
+
+import nl.bitmanager.elasticsearch.support.BytesRange;
+import nl.bitmanager.elasticsearch.typehandlers.TypeHandler;
+
+public class TermFilterAutomatonTest {
+    private static final String[] TERMS = {
+        "", "a", "ab", "abc", "bab", "xabcx", "a.c", "a\nb", "ab\n", "ab\r\n", "b|c", "a]b", "aaa", "caf\u00e9", "\u00e9t\u00e9", "x\"y", "zz"
+    };
+
+    @Test
+    public void test() {
+        assertNull (TermFilterAutomaton.toLuceneRegExp("\\d+"));
+        assertNull (TermFilterAutomaton.toLuceneRegExp("(?i)abc"));
+        assertNull (TermFilterAutomaton.toLuceneRegExp("a^b"));
+        assertNull (TermFilterAutomaton.toLuceneRegExp("^a|b"));
+        assertNull (TermFilterAutomaton.toLuceneRegExp("a++"));
+        assertNull (TermFilterAutomaton.toLuceneRegExp("(^a)"));
+        assertNull (TermFilterAutomaton.toLuceneRegExp("[a-z&&[^b]]"));
+
+        String[] exprs = {"a", "^a", "c$", "^ab$", "a.c", "a\\.c", "b|c", "b\\|c", "^(a|b)c?$", "a{2,}", "[^a-c]", "a]", "caf.", "^.t.$", "\"", "ab*?"};
+        for (String expr: exprs) {
+            assertNotNull (expr, TermFilterAutomaton.toLuceneRegExp(expr));
+            checkSame (expr, null, null);
+            checkSame (null, expr, null);
+        }
+        checkSame ("a", "c$", null);
+        checkSame ("a", null, "ab..b");
+        checkSame (null, "^a", "a..zz");
+
+        assertNull (TermFilterAutomaton.compile(null, null, null));
+        assertNull (TermFilterAutomaton.compile("\\w", null, null));
+
+        // Paging seeks a plain terms enum for a filter that accepts everything, so that must be recognized
+        assertEquals (CompiledAutomaton.AUTOMATON_TYPE.ALL, TermFilterAutomaton.compile(".*", null, null).type);
+    }
+
+    private static void checkSame (String filter, String notFilter, String range) {
+        BytesRange bytesRange = range == null ? null : new BytesRange(range, TypeHandler.create("text"));
+        CompiledAutomaton automaton = TermFilterAutomaton.compile(filter, notFilter, bytesRange);
+        assertNotNull (automaton);
+        Pattern pattern = filter == null ? null : Pattern.compile(filter);
+        Pattern notPattern = notFilter == null ? null : Pattern.compile(notFilter);
+        for (String term: TERMS) {
+            BytesRef bytes = new BytesRef(term);
+            boolean expected = (pattern == null || pattern.matcher(term).find())
+                    && (notPattern == null || !notPattern.matcher(term).find())
+                    && (bytesRange == null || bytesRange.isInRange(TypeHandler.toByteArray(bytes)));
+            boolean actual = automaton.runAutomaton.run(bytes.bytes, bytes.offset, bytes.length);
+            assertEquals (filter + " / " + notFilter + " / " + range + ": [" + term + "]", expected, actual);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.junit.Test;
+
+public class TermListCodecTest {
+
+    @Test
+    public void test() throws IOException {
+        checkRoundTrip (0);
+        checkRoundTrip (1);
+        checkRoundTrip (100);
+        checkRoundTrip (20000); // Large enough to be compressed
+    }
+
+    private static void checkRoundTrip (int n) throws IOException {
+        SortType sort = new SortType("term");
+        TermList a = new TermList(sort);
+        TermList b = new TermList(sort);
+        for (int i = 0; i < n; i++) {
+            String term = String.format("term_%06d", i * 7);
+            a.add(new BytesRef(term), i % 100 + 1);
+            if (i % 3 == 0) b.add(new BytesRef(term), 1000000);
+            if (i % 5 == 0) b.add(new BytesRef(term + "x"), 1);
+        }
+        a.add(new BytesRef(""), 3);
+        TermList expected = new TermList(sort);
+        expected.combine(a);
+        expected.combine(b);
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        expected.saveToStream(out);
+        StreamInput in = out.bytes().streamInput();
+        TermList actual = new TermList(sort);
+        actual.loadFromStream(in);
+        assertEquals (0, in.available());
+
+        TermList.Cursor e = expected.cursor();
+        TermList.Cursor x = actual.cursor();
+        int count = 0;
+        while (e.next()) {
+            assertTrue (x.next());
+            assertEquals (e.term(), x.term());
+            assertEquals (e.count(), x.count());
+            count++;
+        }
+        assertFalse (x.next());
+        assertEquals (count, actual.size());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+public class TermListMergeTest {
+
+    @Test
+    public void testPrunedShards() {
+        TermList a = shard("term", "apple", 10, "banana", 8, "cherry", 5, "date", 2);
+        TermList b = shard("term", "banana", 7, "cherry", 6, "elder", 4, "apple", 1);
+        TermList c = shard("term", "cherry", 9, "apple", 3, "fig", 2);
+        a.pruneToTopCounts(2); // Cut-off 8
+        b.pruneToTopCounts(2); // Cut-off 6
+        c.pruneToTopCounts(3); // Not pruned
+        assertEquals (8, a.getCountErrorBound());
+        assertEquals (6, b.getCountErrorBound());
+        assertEquals (0, c.getCountErrorBound());
+
+        TermList merged = merge("term", a, b, c);
+        assertTerms (merged, "apple", 13, "banana", 15, "cherry", 15, "fig", 2);
+        assertEquals (14, merged.getCountErrorBound());
+
+        TermList reversed = merge("-term", a, b, c);
+        assertTerms (reversed, "fig", 2, "cherry", 15, "banana", 15, "apple", 13);
+        assertEquals (14, reversed.getCountErrorBound());
+
+        //Pruning the merged list adds its own cut-off to the bound of the shards
+        merged.pruneToTopCounts(2);
+        assertTerms (merged, "banana", 15, "cherry", 15);
+        assertEquals (14 + 15, merged.getCountErrorBound());
+    }
+
+    @Test
+    public void testRandom() {
+        Random rnd = new Random(42);
+        for (int iter = 0; iter < 50; iter++) {
+            int shards = 1 + rnd.nextInt(6);
+            int keep = 1 + rnd.nextInt(20);
+            TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+            long expectedBound = 0;
+            TermList[] lists = new TermList[shards];
+            for (int s = 0; s < shards; s++) {
+                //Distinct counts per shard, so that the surviving terms are not decided by ties
+                List<Integer> counts = new ArrayList<Integer>();
+                for (int i = 0; i < 100; i++) counts.add(i + 1);
+                Collections.shuffle(counts, rnd);
+                TreeMap<String, Integer> shard = new TreeMap<String, Integer>();
+                int n = rnd.nextInt(40);
+                for (int i = 0; i < n; i++)
+                    shard.put(String.format("t%03d", rnd.nextInt(60)), counts.get(i));
+
+                lists[s] = new TermList(new SortType("term"));
+                for (Map.Entry<String, Integer> e : shard.entrySet())
+                    lists[s].add(new BytesRef(e.getKey()), e.getValue());
+                lists[s].pruneToTopCounts(keep);
+
+                List<Integer> sorted = new ArrayList<Integer>(shard.values());
+                Collections.sort(sorted, Collections.reverseOrder());
+                if (sorted.size() > keep) expectedBound += sorted.get(keep - 1);
+                for (Map.Entry<String, Integer> e : shard.entrySet()) {
+                    if (sorted.size() > keep && e.getValue() < sorted.get(keep - 1)) continue;
+                    Integer prev = expected.get(e.getKey());
+                    expected.put(e.getKey(), e.getValue() + (prev == null ? 0 : prev));
+                }
+            }
+
+            //Combine in two steps, like the shard lists of a node are combined before they reach the coordinator
+            TermList node = merge("term", lists[0]);
+            TermList[] rest = new TermList[shards];
+            rest[0] = node;
+            for (int s = 1; s < shards; s++) rest[s] = lists[s];
+            TermList merged = merge("term", rest);
+
+            TermList.Cursor cursor = merged.cursor();
+            for (Map.Entry<String, Integer> e : expected.entrySet()) {
+                assertTrue (cursor.next());
+                assertEquals (e.getKey(), cursor.term().utf8ToString());
+                assertEquals (e.getValue().intValue(), cursor.count());
+            }
+            assertFalse (cursor.next());
+            assertEquals (expectedBound, merged.getCountErrorBound());
+        }
+    }
+
+    private static TermList shard (String sort, Object... termsAndCounts) {
+        TermList ret = new TermList(new SortType(sort));
+        for (int i = 0; i < termsAndCounts.length; i += 2)
+            ret.add(new BytesRef((String) termsAndCounts[i]), (Integer) termsAndCounts[i + 1]);
+        return ret;
+    }
+
+    private static TermList merge (String sort, TermList... lists) {
+        TermList ret = new TermList(new SortType(sort));
+        for (TermList list : lists)
+            ret.combine(list);
+        return ret;
+    }
+
+    private static void assertTerms (TermList list, Object... termsAndCounts) {
+        TermList.Cursor cursor = list.cursor();
+        for (int i = 0; i < termsAndCounts.length; i += 2) {
+            assertTrue (cursor.next());
+            assertEquals (termsAndCounts[i], cursor.term().utf8ToString());
+            assertEquals (termsAndCounts[i + 1], cursor.count());
+        }
+        assertFalse (cursor.next());
+    }
+}
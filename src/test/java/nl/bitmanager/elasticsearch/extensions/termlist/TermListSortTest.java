@@ -0,0 +1,78 @@
+/*
+ * Licensed to De Bitmanager under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. De Bitmanager licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.bitmanager.elasticsearch.extensions.termlist;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import nl.bitmanager.elasticsearch.support.RegexReplacers;
+
+public class TermListSortTest {
+    private static final String[] TERMS = {"b2", "a1", "c", "b1", "a2", "b3"};
+    private static final int[] COUNTS = {1, 3, 4, 2, 5, 6};
+
+    @Test
+    public void testTermOrder() {
+        assertOrder ("term", "a1", "a2", "b1", "b2", "b3", "c");
+        assertOrder ("-term", "c", "b3", "b2", "b1", "a2", "a1");
+        assertOrder (null, "a1", "a2", "b1", "b2", "b3", "c"); // Default is sort=term
+    }
+
+    @Test
+    public void testCollisions() {
+        RegexReplacers replacers = new RegexReplacers("^b/a");
+
+        Collisions collisions = create("term").buildCollisions(replacers, true);
+        assertEquals (2, collisions.size());
+        assertCollision (collisions.get(0), "b1", 2, "a1", 3);
+        assertCollision (collisions.get(1), "b2", 1, "a2", 5);
+
+        collisions = create("-term").buildCollisions(replacers, false);
+        assertEquals (3, collisions.size());
+        assertCollision (collisions.get(0), "b3", 6, "a3", 0);
+        assertCollision (collisions.get(1), "b2", 1, "a2", 5);
+        assertCollision (collisions.get(2), "b1", 2, "a1", 3);
+    }
+
+    private static TermList create (String sort) {
+        TermList ret = new TermList(new SortType(sort));
+        for (int i = 0; i < TERMS.length; i++)
+            ret.add(new BytesRef(TERMS[i]), COUNTS[i]);
+        return ret;
+    }
+
+    private static void assertOrder (String sort, String... expected) {
+        TermList.Cursor cursor = create(sort).cursor();
+        for (String term : expected) {
+            assertTrue (cursor.next());
+            assertEquals (term, cursor.term().utf8ToString());
+        }
+        assertFalse (cursor.next());
+    }
+
+    private static void assertCollision (CollisionElt collision, String term, int count, String collidingTerm, int collidingCount) {
+        assertEquals (term, collision.term.termAsString());
+        assertEquals (count, collision.term.count);
+        assertEquals (collidingTerm, collision.collidingTerm.termAsString());
+        assertEquals (collidingCount, collision.collidingTerm.count);
+    }
+}
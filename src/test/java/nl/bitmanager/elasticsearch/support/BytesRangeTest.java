@@ -21,6 +21,7 @@ package nl.bitmanager.elasticsearch.support;
 
 import static org.junit.Assert.*;
 
+import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
 
 import nl.bitmanager.elasticsearch.typehandlers.TypeHandler;
@@ -79,7 +80,16 @@ public class BytesRangeTest {
         assertEquals (false, range.isInRange(bb));
         assertEquals (false, range.isInRange(f));
 
-
+        assertEquals (false, range.isAboveRange(new BytesRef(de)));
+        assertEquals (true, range.isAboveRange(new BytesRef(e)));
+        assertEquals (true, range.isAboveRange(new BytesRef(f)));
+        assertEquals (true, range.isOutsideRange(a, c));
+        assertEquals (false, range.isOutsideRange(a, d));
+        assertEquals (false, range.isOutsideRange(de, f));
+        assertEquals (true, range.isOutsideRange(e, f));
+        range = new BytesRange("e", th);
+        assertEquals (false, range.isAboveRange(new BytesRef(e)));
+        assertEquals (false, range.isOutsideRange(e, f));
     }
 
 }